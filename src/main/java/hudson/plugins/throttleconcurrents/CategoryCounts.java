@@ -0,0 +1,98 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Number of running builds per category, both on each node and in total.
+ *
+ * <p>Each busy executor is credited once to every category its executable belongs to. That covers builds of
+ * throttled jobs as well as Pipeline {@code node} blocks inside a {@code throttle} step, so the per-node and total
+ * category checks of {@link ThrottleQueueTaskDispatcher} both read a single number per category instead of counting
+ * member jobs and tracked pipelines separately.
+ *
+ * <p>The executors running Pipeline builds themselves are also counted apart, so that they can be replaced by the
+ * running Pipeline builds from {@link RunningPipelinesIndex}, which include builds resumed but not yet given an
+ * executor.
+ */
+final class CategoryCounts {
+
+    private final ConcurrentMap<String, AtomicInteger> totals = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> pipelineJobTotals = new ConcurrentHashMap<>();
+    private final CategoryOccupancyTable byNode = new CategoryOccupancyTable();
+
+    /**
+     * @param nodeName the node the executor belongs to.
+     * @param categories the categories of its executable.
+     * @param pipelineJob whether the executable is a Pipeline build itself, rather than one of its blocks.
+     */
+    void credit(@NonNull String nodeName, @NonNull List<String> categories, boolean pipelineJob) {
+        for (String category : categories) {
+            totals.computeIfAbsent(category, k -> new AtomicInteger()).incrementAndGet();
+            if (pipelineJob) {
+                pipelineJobTotals.computeIfAbsent(category, k -> new AtomicInteger()).incrementAndGet();
+            }
+            byNode.increment(nodeName, category);
+        }
+    }
+
+    void debit(@NonNull String nodeName, @NonNull List<String> categories, boolean pipelineJob) {
+        for (String category : categories) {
+            AtomicInteger count = totals.get(category);
+            if (count != null) {
+                count.decrementAndGet();
+            }
+            if (pipelineJob) {
+                AtomicInteger pipelines = pipelineJobTotals.get(category);
+                if (pipelines != null) {
+                    pipelines.decrementAndGet();
+                }
+            }
+            byNode.decrement(nodeName, category);
+        }
+    }
+
+    /**
+     * Forget the categories that are no longer configured and have nothing running in them any more.
+     *
+     * @param configured the names of the categories still configured.
+     */
+    void retainCategories(@NonNull Set<String> configured) {
+        for (Map<String, AtomicInteger> counts : List.of(totals, pipelineJobTotals)) {
+            counts.entrySet().removeIf(e -> !configured.contains(e.getKey()) && e.getValue().get() == 0);
+        }
+        byNode.retainCategories(configured);
+    }
+
+    /**
+     * @param category the category name.
+     * @return the number of running builds in the given category, on any node.
+     */
+    int total(@NonNull String category) {
+        AtomicInteger count = totals.get(category);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @param category the category name.
+     * @return the number of executors running a Pipeline build itself in the given category, on any node.
+     */
+    int pipelineJobTotal(@NonNull String category) {
+        AtomicInteger count = pipelineJobTotals.get(category);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @param nodeName the node name, empty for the built-in node.
+     * @param category the category name.
+     * @return the number of running builds in the given category on the given node.
+     */
+    int onNode(@NonNull String nodeName, @NonNull String category) {
+        return byNode.get(nodeName, category);
+    }
+}
@@ -0,0 +1,181 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+
+/**
+ * The categories of each job with throttling enabled, by full name of the job, as counted by
+ * {@link RunningPipelinesIndex}.
+ *
+ * <p>Jobs are registered by full name when their {@link ThrottleJobProperty} is attached to them, and checked again
+ * whenever they are saved, which catches properties being removed or replaced. Registering a job replaces whatever was
+ * registered under the same name before. Registrations follow jobs when they or a folder containing them are renamed
+ * or moved, and are dropped when they are deleted. The whole index is rebuilt once all jobs are loaded, so jobs
+ * discarded by a reload from disk are not kept.
+ */
+@Extension
+public class CategoryMembershipIndex extends ItemListener {
+
+    /** The member jobs, by full name. Guarded by {@code this}. */
+    private final Map<String, Registration> registrations = new HashMap<>();
+
+    @NonNull
+    public static CategoryMembershipIndex get() {
+        return ExtensionList.lookupSingleton(CategoryMembershipIndex.class);
+    }
+
+    /**
+     * @param category the category name.
+     * @return the jobs with throttling enabled in the given category, not including matrix configurations. Walks
+     *     every registration, so not meant for the throttle checks.
+     */
+    @NonNull
+    synchronized Set<Queue.Task> getMembers(@NonNull String category) {
+        Set<Queue.Task> members = new HashSet<>();
+        for (Registration registration : registrations.values()) {
+            if (registration.categories().contains(category)) {
+                members.add(registration.task());
+            }
+        }
+        return members;
+    }
+
+    /**
+     * @param job a job.
+     * @return the categories the job is registered in, empty if it has no throttling enabled.
+     */
+    @NonNull
+    synchronized Set<String> getCategories(@NonNull Job<?, ?> job) {
+        Registration registration = registrations.get(job.getFullName());
+        return registration != null ? registration.categories() : Set.of();
+    }
+
+    /**
+     * Records the categories of a job, as configured by the given property.
+     *
+     * @param job the job.
+     * @param property the property attached to the job, or null if it has none.
+     */
+    void update(@NonNull Job<?, ?> job, @CheckForNull ThrottleJobProperty property) {
+        Set<String> categories = categoriesOf(job, property);
+        Registration registration = categories.isEmpty() ? null : new Registration((Queue.Task) job, categories);
+        synchronized (this) {
+            if (registration == null) {
+                registrations.remove(job.getFullName());
+            } else {
+                registrations.put(job.getFullName(), registration);
+            }
+        }
+    }
+
+    /** Rebuilds the whole index from the jobs currently loaded. */
+    void rebuild() {
+        Map<String, Registration> rebuilt = new HashMap<>();
+        // Throttle-concurrent-builds requires READ permissions for all projects.
+        try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+            for (Job<?, ?> job : Jenkins.get().allItems(Job.class)) {
+                Set<String> categories = categoriesOf(job, job.getProperty(ThrottleJobProperty.class));
+                if (!categories.isEmpty()) {
+                    rebuilt.put(job.getFullName(), new Registration((Queue.Task) job, categories));
+                }
+            }
+        }
+        synchronized (this) {
+            registrations.clear();
+            registrations.putAll(rebuilt);
+        }
+    }
+
+    @NonNull
+    private static Set<String> categoriesOf(@NonNull Job<?, ?> job, @CheckForNull ThrottleJobProperty property) {
+        // Matrix configurations share the property of their parent, but are only throttled through it.
+        if (!(job instanceof Queue.Task)
+                || job instanceof MatrixConfiguration
+                || property == null
+                || !property.getThrottleEnabled()
+                || property.getCategories() == null) {
+            return Set.of();
+        }
+        Set<String> categories = new HashSet<>();
+        for (String category : property.getCategories()) {
+            if (category != null && !category.isEmpty()) {
+                categories.add(category);
+            }
+        }
+        return Set.copyOf(categories);
+    }
+
+    @Override
+    public void onLoaded() {
+        rebuild();
+    }
+
+    @Override
+    public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+        String prefix = oldFullName + "/";
+        synchronized (this) {
+            Map<String, Registration> moved = new HashMap<>();
+            registrations.entrySet().removeIf(entry -> {
+                String fullName = entry.getKey();
+                if (fullName.equals(oldFullName)) {
+                    moved.put(newFullName, entry.getValue());
+                    return true;
+                }
+                if (fullName.startsWith(prefix)) {
+                    moved.put(newFullName + fullName.substring(oldFullName.length()), entry.getValue());
+                    return true;
+                }
+                return false;
+            });
+            registrations.putAll(moved);
+        }
+    }
+
+    @Override
+    public void onDeleted(Item item) {
+        String fullName = item.getFullName();
+        String prefix = fullName + "/";
+        synchronized (this) {
+            registrations.keySet().removeIf(name -> name.equals(fullName)
+                    || item instanceof ItemGroup && name.startsWith(prefix));
+        }
+    }
+
+    /**
+     * A job registered as a member of some categories.
+     *
+     * @param task the job.
+     * @param categories the names of its categories, never empty.
+     */
+    private record Registration(Queue.Task task, Set<String> categories) {}
+
+    /** Checks the categories of jobs again when they are saved, e.g. after their properties have changed. */
+    @Extension
+    public static class JobChanges extends SaveableListener {
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job<?, ?> job) {
+                get().update(job, job.getProperty(ThrottleJobProperty.class));
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Dense table of the number of running builds per node and category.
+ *
+ * <p>Nodes and categories are each mapped to a small integer index, and the counts are kept in one atomic row per
+ * node, so that reading a cell costs two hash lookups and an array access however many jobs a category has or
+ * executors a node runs. Reads take no lock: they go through an immutable {@link Layout} that writers replace
+ * whenever a node or category gains or loses its index, which only happens when a node starts or stops running
+ * builds and when a category is first used or removed. The index of a node is released once nothing runs on it any
+ * more, so that short-lived cloud agents do not make the table grow without bounds, and the index of a category once
+ * it is no longer configured and nothing runs in it any more.
+ */
+final class CategoryOccupancyTable {
+
+    /** Indexes of nodes and categories, and the rows of counts they point into; never modified once published. */
+    private record Layout(
+            @NonNull Map<String, Integer> nodeIndexes,
+            @NonNull Map<String, Integer> categoryIndexes,
+            @NonNull AtomicIntegerArray[] rows) {}
+
+    private volatile Layout layout = new Layout(Map.of(), Map.of(), new AtomicIntegerArray[0]);
+
+    // The fields below are guarded by this table's monitor, as are all writes.
+
+    private final Deque<Integer> freeNodeIndexes = new ArrayDeque<>();
+    private final Deque<Integer> freeCategoryIndexes = new ArrayDeque<>();
+    private int categoryIndexCount;
+
+    /** Sum of each row, to know when a node index can be released. */
+    private int[] rowTotals = new int[0];
+
+    /**
+     * @param nodeName the node name, empty for the built-in node.
+     * @param category the category name.
+     * @return the number of running builds in the given category on the given node.
+     */
+    int get(@NonNull String nodeName, @NonNull String category) {
+        Layout current = layout;
+        Integer node = current.nodeIndexes().get(nodeName);
+        Integer cat = current.categoryIndexes().get(category);
+        if (node == null || cat == null) {
+            return 0;
+        }
+        AtomicIntegerArray row = current.rows()[node];
+        return cat < row.length() ? row.get(cat) : 0;
+    }
+
+    synchronized void increment(@NonNull String nodeName, @NonNull String category) {
+        int node = nodeIndex(nodeName);
+        int cat = categoryIndex(category);
+        AtomicIntegerArray row = layout.rows()[node];
+        if (cat >= row.length()) {
+            AtomicIntegerArray wider = new AtomicIntegerArray(categoryIndexCount);
+            for (int i = 0; i < row.length(); i++) {
+                wider.set(i, row.get(i));
+            }
+            row = wider;
+            publishRow(node, row);
+        }
+        row.incrementAndGet(cat);
+        rowTotals[node]++;
+    }
+
+    synchronized void decrement(@NonNull String nodeName, @NonNull String category) {
+        Layout current = layout;
+        Integer node = current.nodeIndexes().get(nodeName);
+        Integer cat = current.categoryIndexes().get(category);
+        if (node == null || cat == null) {
+            return;
+        }
+        AtomicIntegerArray row = current.rows()[node];
+        if (cat >= row.length() || row.get(cat) == 0) {
+            return;
+        }
+        row.decrementAndGet(cat);
+        if (--rowTotals[node] == 0) {
+            Map<String, Integer> nodeIndexes = new HashMap<>(current.nodeIndexes());
+            nodeIndexes.remove(nodeName);
+            layout = new Layout(Map.copyOf(nodeIndexes), current.categoryIndexes(), current.rows());
+            freeNodeIndexes.push(node);
+        }
+    }
+
+    /**
+     * Release the index of every category that is not among the given ones and has nothing running in it, so that
+     * categories removed from the configuration do not keep their column.
+     *
+     * @param configured the names of the categories still configured.
+     */
+    synchronized void retainCategories(@NonNull Set<String> configured) {
+        Layout current = layout;
+        Map<String, Integer> categoryIndexes = null;
+        for (Map.Entry<String, Integer> entry : current.categoryIndexes().entrySet()) {
+            if (configured.contains(entry.getKey()) || isOccupied(current, entry.getValue())) {
+                continue;
+            }
+            if (categoryIndexes == null) {
+                categoryIndexes = new HashMap<>(current.categoryIndexes());
+            }
+            categoryIndexes.remove(entry.getKey());
+            freeCategoryIndexes.push(entry.getValue());
+        }
+        if (categoryIndexes != null) {
+            layout = new Layout(current.nodeIndexes(), Map.copyOf(categoryIndexes), current.rows());
+        }
+    }
+
+    /**
+     * @return the number of categories holding an index, for tests.
+     */
+    int categoryCount() {
+        return layout.categoryIndexes().size();
+    }
+
+    private static boolean isOccupied(@NonNull Layout layout, int cat) {
+        // Rows of released nodes are all zeroes, so they need not be told apart.
+        for (AtomicIntegerArray row : layout.rows()) {
+            if (cat < row.length() && row.get(cat) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int nodeIndex(@NonNull String nodeName) {
+        Layout current = layout;
+        Integer node = current.nodeIndexes().get(nodeName);
+        if (node != null) {
+            return node;
+        }
+        int index;
+        AtomicIntegerArray[] rows;
+        if (!freeNodeIndexes.isEmpty()) {
+            index = freeNodeIndexes.pop();
+            rows = current.rows().clone();
+        } else {
+            index = current.rows().length;
+            rows = Arrays.copyOf(current.rows(), index + 1);
+            rowTotals = Arrays.copyOf(rowTotals, index + 1);
+        }
+        // A fresh row, so that a reader still holding the previous layout does not see the counts of the new node.
+        rows[index] = new AtomicIntegerArray(categoryIndexCount);
+        Map<String, Integer> nodeIndexes = new HashMap<>(current.nodeIndexes());
+        nodeIndexes.put(nodeName, index);
+        layout = new Layout(Map.copyOf(nodeIndexes), current.categoryIndexes(), rows);
+        return index;
+    }
+
+    private int categoryIndex(@NonNull String category) {
+        Layout current = layout;
+        Integer cat = current.categoryIndexes().get(category);
+        if (cat != null) {
+            return cat;
+        }
+        // A released index has nothing left in its column, so it can be handed out as it is.
+        int index = freeCategoryIndexes.isEmpty() ? categoryIndexCount++ : freeCategoryIndexes.pop();
+        Map<String, Integer> categoryIndexes = new HashMap<>(current.categoryIndexes());
+        categoryIndexes.put(category, index);
+        layout = new Layout(current.nodeIndexes(), Map.copyOf(categoryIndexes), current.rows());
+        return index;
+    }
+
+    private void publishRow(int node, @NonNull AtomicIntegerArray row) {
+        Layout current = layout;
+        AtomicIntegerArray[] rows = current.rows().clone();
+        rows[node] = row;
+        layout = new Layout(current.nodeIndexes(), current.categoryIndexes(), rows);
+    }
+}
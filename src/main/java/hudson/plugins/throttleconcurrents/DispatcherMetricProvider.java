@@ -0,0 +1,44 @@
+package hudson.plugins.throttleconcurrents;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+import jenkins.metrics.api.MetricProvider;
+
+/**
+ * Publishes the totals of the {@link DispatcherMetrics} of each operation through the Metrics plugin, when it is
+ * installed. The breakdown by category and outcome is only available from {@link DispatcherMetricsAction}.
+ */
+@Extension(optional = true)
+public class DispatcherMetricProvider extends MetricProvider {
+
+    @NonNull
+    @Override
+    public MetricSet getMetricSet() {
+        Map<String, Metric> metrics = new HashMap<>();
+        for (DispatcherMetrics.Operation operation : DispatcherMetrics.Operation.values()) {
+            gauge(metrics, operation, "count", DispatcherMetrics.Snapshot::count);
+            gauge(metrics, operation, "totalNanos", DispatcherMetrics.Snapshot::totalNanos);
+            gauge(metrics, operation, "p50Nanos", DispatcherMetrics.Snapshot::p50Nanos);
+            gauge(metrics, operation, "p99Nanos", DispatcherMetrics.Snapshot::p99Nanos);
+            gauge(metrics, operation, "maxNanos", DispatcherMetrics.Snapshot::maxNanos);
+        }
+        return () -> metrics;
+    }
+
+    private static void gauge(
+            Map<String, Metric> metrics,
+            DispatcherMetrics.Operation operation,
+            String name,
+            ToLongFunction<DispatcherMetrics.Snapshot> value) {
+        metrics.put(
+                MetricRegistry.name("throttle-concurrents", operation.metricName(), name),
+                (Gauge<Long>) () -> value.applyAsLong(DispatcherMetrics.get().total(operation)));
+    }
+}
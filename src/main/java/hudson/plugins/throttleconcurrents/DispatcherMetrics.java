@@ -0,0 +1,205 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the checks made by {@link ThrottleQueueTaskDispatcher}, by category and by
+ * outcome.
+ *
+ * <p>Recording a call costs two {@link System#nanoTime} calls, a lookup in a concurrent map and a few uncontended
+ * atomic increments, and allocates nothing once a category has been seen. Latencies are counted in buckets of powers of
+ * two nanoseconds, so percentiles are approximate: they are reported as the upper bound of their bucket.
+ */
+final class DispatcherMetrics {
+
+    /** Set to {@code true} to stop recording. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "deliberately mutable")
+    static boolean DISABLED = Boolean.getBoolean(DispatcherMetrics.class.getName() + ".DISABLED");
+
+    /** The checks that are timed. */
+    enum Operation {
+        CAN_TAKE("canTake"),
+        CAN_RUN("canRun"),
+        CATEGORY_ON_NODE("categoryOnNode"),
+        CATEGORY_ALL_NODES("categoryAllNodes"),
+        MATCHING_PARAMETERS("matchingParameters"),
+        /** Finding the {@code throttle} step enclosing a Pipeline {@code node} block; "blocked" if there is one. */
+        PIPELINE_CLASSIFICATION("pipelineClassification");
+
+        private final String metricName;
+
+        Operation(String metricName) {
+            this.metricName = metricName;
+        }
+
+        @NonNull
+        String metricName() {
+            return metricName;
+        }
+    }
+
+    /** Returned by {@link #start} when recording is disabled; no value {@link System#nanoTime} returns in practice. */
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /** Key of the timers of an operation not broken down by category. */
+    private static final String NO_CATEGORY = "";
+
+    private static final DispatcherMetrics INSTANCE = new DispatcherMetrics();
+
+    /** Map from operations, to category names, to the timers of the allowed and blocked calls. */
+    private final Map<Operation, ConcurrentMap<String, Timer[]>> timers = new EnumMap<>(Operation.class);
+
+    private DispatcherMetrics() {
+        for (Operation operation : Operation.values()) {
+            timers.put(operation, new ConcurrentHashMap<>());
+        }
+    }
+
+    @NonNull
+    static DispatcherMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the current time, to pass to {@link #record} once the call completes, or {@link #NOT_TIMED} if recording
+     *     is disabled.
+     */
+    static long start() {
+        return DISABLED ? NOT_TIMED : System.nanoTime();
+    }
+
+    /**
+     * @param operation the check that completed.
+     * @param category the category it checked, or null if it is not about a single category.
+     * @param blocked whether the check blocked the task.
+     * @param start the value of {@link #start} before the check; nothing is recorded if it is {@link #NOT_TIMED}.
+     */
+    void record(@NonNull Operation operation, @CheckForNull String category, boolean blocked, long start) {
+        if (DISABLED || start == NOT_TIMED) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        String key = category != null ? category : NO_CATEGORY;
+        Timer[] outcomes = timers.get(operation).computeIfAbsent(key, k -> new Timer[] {new Timer(), new Timer()});
+        outcomes[blocked ? 1 : 0].record(nanos);
+    }
+
+    /**
+     * @param operation an operation.
+     * @return the totals of the operation over all categories and outcomes.
+     */
+    @NonNull
+    Snapshot total(@NonNull Operation operation) {
+        Timer total = new Timer();
+        for (Timer[] outcomes : timers.get(operation).values()) {
+            for (Timer timer : outcomes) {
+                total.add(timer);
+            }
+        }
+        return total.snapshot();
+    }
+
+    /**
+     * @return all the timers, as a map from operation names, to category names (empty for operations that are not
+     *     about a single category), to outcomes ({@code allowed} or {@code blocked}), to their snapshots.
+     */
+    @NonNull
+    Map<String, Map<String, Map<String, Snapshot>>> snapshot() {
+        Map<String, Map<String, Map<String, Snapshot>>> result = new TreeMap<>();
+        for (Map.Entry<Operation, ConcurrentMap<String, Timer[]>> operation : timers.entrySet()) {
+            Map<String, Map<String, Snapshot>> categories = new TreeMap<>();
+            for (Map.Entry<String, Timer[]> category : operation.getValue().entrySet()) {
+                Map<String, Snapshot> outcomes = new TreeMap<>();
+                outcomes.put("allowed", category.getValue()[0].snapshot());
+                outcomes.put("blocked", category.getValue()[1].snapshot());
+                categories.put(category.getKey(), outcomes);
+            }
+            result.put(operation.getKey().metricName(), categories);
+        }
+        return result;
+    }
+
+    /** Forget everything recorded so far. */
+    void reset() {
+        for (ConcurrentMap<String, Timer[]> categories : timers.values()) {
+            categories.clear();
+        }
+    }
+
+    /**
+     * The calls recorded by a timer.
+     *
+     * @param count the number of calls.
+     * @param totalNanos the total time spent in the calls.
+     * @param p50Nanos the median time of a call, approximately.
+     * @param p99Nanos the 99th percentile of the time of a call, approximately.
+     * @param maxNanos the longest time of a call.
+     */
+    record Snapshot(long count, long totalNanos, long p50Nanos, long p99Nanos, long maxNanos) {}
+
+    private static final class Timer {
+
+        private static final int BUCKETS = 64;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        /** Bucket {@code i} counts the calls that took less than {@code 2^i} nanoseconds, and at least half as long. */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+        }
+
+        void add(@NonNull Timer other) {
+            count.add(other.count.sum());
+            totalNanos.add(other.totalNanos.sum());
+            maxNanos.accumulate(other.maxNanos.get());
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.addAndGet(i, other.buckets.get(i));
+            }
+        }
+
+        @NonNull
+        Snapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                n += counts[i];
+            }
+            return new Snapshot(
+                    count.sum(),
+                    totalNanos.sum(),
+                    percentile(counts, n, 0.5),
+                    percentile(counts, n, 0.99),
+                    maxNanos.get());
+        }
+
+        private static long percentile(long[] counts, long n, double percentile) {
+            long rank = (long) Math.ceil(percentile * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+}
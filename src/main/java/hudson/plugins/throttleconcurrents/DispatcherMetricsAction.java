@@ -0,0 +1,63 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import hudson.util.HttpResponses;
+import java.util.Map;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.verb.GET;
+
+/**
+ * Serves the {@link DispatcherMetrics} as JSON at {@code /throttle-concurrents-metrics/}, to users allowed to read the
+ * system configuration.
+ */
+@Extension
+public class DispatcherMetricsAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "throttle-concurrents-metrics";
+    }
+
+    @GET
+    public HttpResponse doIndex() {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+        JSONObject operations = new JSONObject();
+        for (Map.Entry<String, Map<String, Map<String, DispatcherMetrics.Snapshot>>> operation :
+                DispatcherMetrics.get().snapshot().entrySet()) {
+            JSONObject categories = new JSONObject();
+            for (Map.Entry<String, Map<String, DispatcherMetrics.Snapshot>> category :
+                    operation.getValue().entrySet()) {
+                JSONObject outcomes = new JSONObject();
+                for (Map.Entry<String, DispatcherMetrics.Snapshot> outcome : category.getValue().entrySet()) {
+                    outcomes.put(outcome.getKey(), toJson(outcome.getValue()));
+                }
+                categories.put(category.getKey(), outcomes);
+            }
+            operations.put(operation.getKey(), categories);
+        }
+        return HttpResponses.okJSON(operations);
+    }
+
+    private static JSONObject toJson(DispatcherMetrics.Snapshot snapshot) {
+        JSONObject json = new JSONObject();
+        json.put("count", snapshot.count());
+        json.put("totalNanos", snapshot.totalNanos());
+        json.put("p50Nanos", snapshot.p50Nanos());
+        json.put("p99Nanos", snapshot.p99Nanos());
+        json.put("maxNanos", snapshot.maxNanos());
+        return json;
+    }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.plugins.throttleconcurrents.pipeline.ThrottleCategoriesAction;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionListener;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Remembers, for each {@link FlowNode} the dispatcher has looked at, the {@code throttle} step most directly enclosing
+ * it, or that there is none.
+ *
+ * <p>The enclosing blocks of a node never change once it exists, so the walk back through the flow graph only needs to
+ * be done once per node rather than once per dispatcher call. The cache is bounded, least recently used entries being
+ * dropped first, and the entries of a build are dropped as soon as its flow execution completes.
+ */
+@Extension
+public class EnclosingThrottleCache extends FlowExecutionListener {
+
+    private static final int MAX_ENTRIES =
+            Integer.getInteger(EnclosingThrottleCache.class.getName() + ".MAX_ENTRIES", 10_000);
+
+    private final Map<Key, Optional<ThrottleBlock>> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Optional<ThrottleBlock>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    @NonNull
+    public static EnclosingThrottleCache get() {
+        return ExtensionList.lookupSingleton(EnclosingThrottleCache.class);
+    }
+
+    /**
+     * @param inner the node to look up.
+     * @param finder finds the enclosing {@code throttle} step start node of {@code inner}, or null if there is none.
+     * @return the enclosing {@code throttle} step, or null.
+     */
+    @CheckForNull
+    ThrottleBlock computeIfAbsent(@NonNull FlowNode inner, @NonNull Function<FlowNode, FlowNode> finder) {
+        Key key = new Key(inner.getExecution(), inner.getId());
+        Optional<ThrottleBlock> cached;
+        synchronized (this) {
+            cached = entries.get(key);
+        }
+        if (cached != null) {
+            return cached.orElse(null);
+        }
+
+        FlowNode enclosing = finder.apply(inner);
+        ThrottleBlock block = null;
+        if (enclosing != null) {
+            ThrottleCategoriesAction action = enclosing.getAction(ThrottleCategoriesAction.class);
+            block = new ThrottleBlock(enclosing.getId(), action != null ? action.getCategories() : null);
+        }
+        // A walk cut short by a timeout may have missed the enclosing block, so only trust a negative result from a
+        // walk that went all the way.
+        if (block != null || !Thread.currentThread().isInterrupted()) {
+            synchronized (this) {
+                entries.put(key, Optional.ofNullable(block));
+            }
+        }
+        return block;
+    }
+
+    @Override
+    public void onCompleted(@NonNull FlowExecution execution) {
+        synchronized (this) {
+            entries.keySet().removeIf(key -> key.execution() == execution);
+        }
+    }
+
+    /**
+     * A {@code throttle} step.
+     *
+     * @param nodeId the {@link FlowNode#getId} of its start node.
+     * @param categories the categories recorded on its start node, or null if it was started before those were
+     *     recorded.
+     */
+    record ThrottleBlock(@NonNull String nodeId, @CheckForNull List<String> categories) {}
+
+    /** A flow node, identified by its execution and its id within that execution. */
+    private record Key(@NonNull FlowExecution execution, @NonNull String nodeId) {}
+}
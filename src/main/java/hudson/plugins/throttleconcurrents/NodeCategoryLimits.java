@@ -0,0 +1,125 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntBiFunction;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * The effective {@link ThrottleJobProperty.ThrottleCategory#getMaxConcurrentPerNode} of each category on each node,
+ * taking the {@link ThrottleJobProperty.NodeLabeledPair}s of the category into account.
+ *
+ * <p>Resolving a limit means matching the labels of the node against those of the category, so each limit is only
+ * resolved once and then cached until the labels of a node may have changed: when a node is created, updated or
+ * deleted, when a computer comes online or goes offline, or when the global configuration is saved. Any of those
+ * invalidates all limits at once, as they are rare. Replacing a category also replaces its cached limits, since
+ * categories are cached by identity.
+ */
+@Extension
+public class NodeCategoryLimits extends ComputerListener {
+
+    private final ConcurrentMap<Key, Limit> limits = new ConcurrentHashMap<>();
+
+    /** Bumped whenever the cached limits are invalidated, so that limits resolved concurrently are not used. */
+    private final AtomicLong generation = new AtomicLong();
+
+    @NonNull
+    public static NodeCategoryLimits get() {
+        return ExtensionList.lookupSingleton(NodeCategoryLimits.class);
+    }
+
+    /**
+     * @param node a node.
+     * @param category a category.
+     * @param resolver resolves the limit of the given category on the given node, if it is not cached.
+     * @return the limit of the given category on the given node.
+     */
+    int get(
+            @NonNull Node node,
+            @NonNull ThrottleJobProperty.ThrottleCategory category,
+            @NonNull ToIntBiFunction<Node, ThrottleJobProperty.ThrottleCategory> resolver) {
+        Key key = new Key(node.getNodeName(), category);
+        long current = generation.get();
+        Limit cached = limits.get(key);
+        if (cached != null && cached.generation() == current) {
+            return cached.value();
+        }
+        int value = resolver.applyAsInt(node, category);
+        limits.put(key, new Limit(current, value));
+        return value;
+    }
+
+    /** Forget all cached limits. */
+    void invalidate() {
+        generation.incrementAndGet();
+        limits.clear();
+    }
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        invalidate();
+    }
+
+    @Override
+    public void onOffline(@NonNull Computer c, OfflineCause cause) {
+        invalidate();
+    }
+
+    @Override
+    public void onConfigurationChange() {
+        invalidate();
+    }
+
+    /** A category on a node, by name of the node and identity of the category. */
+    private record Key(@NonNull String nodeName, @NonNull ThrottleJobProperty.ThrottleCategory category) {}
+
+    private record Limit(long generation, int value) {}
+
+    /** Invalidates the limits when a node is reconfigured, possibly with different labels. */
+    @Extension
+    public static class NodeChanges extends NodeListener {
+
+        @Override
+        protected void onCreated(@NonNull Node node) {
+            get().invalidate();
+        }
+
+        @Override
+        protected void onUpdated(@NonNull Node oldOne, @NonNull Node newOne) {
+            get().invalidate();
+        }
+
+        @Override
+        protected void onDeleted(@NonNull Node node) {
+            get().invalidate();
+        }
+    }
+
+    /**
+     * Invalidates the limits when the global throttle configuration is saved, or the global configuration including
+     * the labels of the built-in node.
+     */
+    @Extension
+    public static class ConfigurationChanges extends SaveableListener {
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof ThrottleJobProperty.DescriptorImpl || o instanceof Jenkins) {
+                get().invalidate();
+            }
+        }
+    }
+}
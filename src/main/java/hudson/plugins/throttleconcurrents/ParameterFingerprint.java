@@ -0,0 +1,109 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+
+/**
+ * The parameters of a build or queue item, as compared by {@link ThrottleJobProperty#isLimitOneJobWithMatchingParams}.
+ *
+ * <p>Each parameter is represented by a key that is equal to the key of another parameter exactly when the parameters
+ * themselves are equal. For most parameters the key is the {@link ParameterValue} itself. String parameters with a long
+ * value, such as large text parameters, are represented by a digest of their value instead, so that comparing them does
+ * not compare the whole text every time, and so that no long strings are held on to just for comparing them.
+ */
+final class ParameterFingerprint {
+
+    /** Length from which the value of a string parameter is compared by digest. */
+    static final int DIGEST_THRESHOLD =
+            Integer.getInteger(ParameterFingerprint.class.getName() + ".DIGEST_THRESHOLD", 1024);
+
+    @CheckForNull
+    private final ParametersAction source;
+
+    private final Set<String> names;
+    private final Set<Object> keys;
+
+    private ParameterFingerprint(
+            @CheckForNull ParametersAction source, @NonNull Set<String> names, @NonNull Set<Object> keys) {
+        this.source = source;
+        this.names = names;
+        this.keys = keys;
+    }
+
+    /**
+     * @param source the parameters of a queue item, if any.
+     * @param names the names of the parameters to compare, or an empty set to compare all parameters.
+     * @return the fingerprint of the given parameters.
+     */
+    @NonNull
+    static ParameterFingerprint of(@CheckForNull ParametersAction source, @NonNull Set<String> names) {
+        return new ParameterFingerprint(
+                source, names, keysOf(source != null ? source.getParameters() : Collections.emptyList(), names));
+    }
+
+    /**
+     * @param source the parameters of a queue item, if any.
+     * @param names the names of the parameters to compare.
+     * @return whether this fingerprint was computed from the given parameters, for the given names.
+     */
+    boolean isFor(@CheckForNull ParametersAction source, @NonNull Set<String> names) {
+        return this.source == source && this.names.equals(names);
+    }
+
+    /** @return the keys of the compared parameters. */
+    @NonNull
+    Set<Object> keys() {
+        return keys;
+    }
+
+    /**
+     * @param parameters some parameters.
+     * @param names the names of the parameters to keep, or an empty set to keep all parameters.
+     * @return the keys of the parameters kept.
+     */
+    @NonNull
+    static Set<Object> keysOf(@NonNull Collection<ParameterValue> parameters, @NonNull Set<String> names) {
+        Set<Object> keys = new HashSet<>();
+        for (ParameterValue parameter : parameters) {
+            if (parameter != null && (names.isEmpty() || names.contains(parameter.getName()))) {
+                keys.add(keyOf(parameter));
+            }
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+
+    @NonNull
+    private static Object keyOf(@NonNull ParameterValue parameter) {
+        if (parameter instanceof StringParameterValue stringParameter) {
+            String value = stringParameter.getValue();
+            if (value != null && value.length() >= DIGEST_THRESHOLD) {
+                return new Digest(parameter.getClass(), parameter.getName(), digest(value));
+            }
+        }
+        return parameter;
+    }
+
+    @NonNull
+    private static String digest(@NonNull String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always supported", e);
+        }
+    }
+
+    /** A string parameter with a long value, compared by its type, name and a digest of its value. */
+    private record Digest(@NonNull Class<?> type, @NonNull String name, @NonNull String digest) {}
+}
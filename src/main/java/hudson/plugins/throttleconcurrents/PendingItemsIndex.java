@@ -0,0 +1,197 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the queue items that are pending, i.e. handed to an executor that has not started them yet.
+ *
+ * <p>{@link QueueListener} has no event for an item becoming pending, but it is the only state an item can be in
+ * after leaving the waiting, blocked or buildable state without entering another one or leaving the queue. So an item
+ * is recorded when it leaves one of those states and dropped again when it enters one or leaves the queue. All those
+ * events are fired under the queue lock, as are the throttle checks reading the index.
+ *
+ * <p>Pending items are counted by task, and by the categories the task counts towards. For a Pipeline {@code node}
+ * block those are the categories of its enclosing {@code throttle} step, which is then only looked up once per item
+ * instead of once per category check. Items that {@link ThrottleQueueTaskDispatcher#mayBeThrottled} rules out are not
+ * recorded at all, as no throttle check ever asks about them.
+ */
+@Extension
+public class PendingItemsIndex extends QueueListener {
+
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final Map<Queue.Task, Integer> countsByTask = new HashMap<>();
+    private final Map<String, Integer> countsByCategory = new HashMap<>();
+
+    private volatile boolean seeded;
+
+    @NonNull
+    public static PendingItemsIndex get() {
+        return ExtensionList.lookupSingleton(PendingItemsIndex.class);
+    }
+
+    /**
+     * @param task the task to look for.
+     * @return whether an item of the given task is pending, like {@link Queue#isPending}.
+     */
+    boolean isPending(@NonNull Queue.Task task) {
+        ensureSeeded();
+        synchronized (this) {
+            return countsByTask.containsKey(task);
+        }
+    }
+
+    /**
+     * @param category the category name.
+     * @return whether an item counting towards the given category is pending.
+     */
+    boolean isCategoryPending(@NonNull String category) {
+        ensureSeeded();
+        synchronized (this) {
+            return countsByCategory.containsKey(category);
+        }
+    }
+
+    @Override
+    public void onLeaveWaiting(Queue.WaitingItem wi) {
+        add(wi);
+    }
+
+    @Override
+    public void onLeaveBlocked(Queue.BlockedItem bi) {
+        add(bi);
+    }
+
+    @Override
+    public void onLeaveBuildable(Queue.BuildableItem bi) {
+        add(bi);
+    }
+
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem wi) {
+        remove(wi);
+    }
+
+    @Override
+    public void onEnterBlocked(Queue.BlockedItem bi) {
+        remove(bi);
+    }
+
+    @Override
+    public void onEnterBuildable(Queue.BuildableItem bi) {
+        remove(bi);
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        remove(li);
+    }
+
+    private synchronized void add(@NonNull Queue.Item item) {
+        if (!entries.containsKey(item.getId())) {
+            put(item);
+        }
+    }
+
+    /** @return whether the item was recorded. */
+    private boolean put(@NonNull Queue.Item item) {
+        ThrottleQueueTaskDispatcher dispatcher = ThrottleQueueTaskDispatcher.get();
+        if (!dispatcher.mayBeThrottled(item.task)) {
+            return false;
+        }
+        Entry entry = new Entry(item.task, dispatcher.categoriesOfPendingTask(item.task));
+        entries.put(item.getId(), entry);
+        countsByTask.merge(entry.task(), 1, Integer::sum);
+        for (String category : entry.categories()) {
+            countsByCategory.merge(category, 1, Integer::sum);
+        }
+        return true;
+    }
+
+    private synchronized void remove(@NonNull Queue.Item item) {
+        removeEntry(item.getId());
+    }
+
+    private void removeEntry(long id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            countsByTask.computeIfPresent(entry.task(), (k, v) -> v > 1 ? v - 1 : null);
+            for (String category : entry.categories()) {
+                countsByCategory.computeIfPresent(category, (k, v) -> v > 1 ? v - 1 : null);
+            }
+        }
+    }
+
+    private void ensureSeeded() {
+        if (!seeded) {
+            reconcile();
+        }
+    }
+
+    /**
+     * Compare the index with the pending items of the queue, and repair any difference, e.g. from an item that was
+     * handed to an executor which then gave it up.
+     *
+     * @return the number of items whose entry had to be repaired.
+     */
+    int reconcile() {
+        int[] drift = new int[1];
+        Queue.withLock(() -> {
+            drift[0] = reconcileLocked();
+        });
+        return drift[0];
+    }
+
+    private synchronized int reconcileLocked() {
+        Map<Long, Queue.BuildableItem> pending = new HashMap<>();
+        for (Queue.BuildableItem item : Queue.getInstance().getPendingItems()) {
+            pending.put(item.getId(), item);
+        }
+        int drift = 0;
+        for (Long id : List.copyOf(entries.keySet())) {
+            if (!pending.containsKey(id)) {
+                removeEntry(id);
+                drift++;
+            }
+        }
+        for (Queue.BuildableItem item : pending.values()) {
+            if (!entries.containsKey(item.getId()) && put(item)) {
+                drift++;
+            }
+        }
+
+        if (drift > 0 && seeded) {
+            LOGGER.log(Level.FINE, "Repaired {0} out-of-date entries in the pending items index", drift);
+        }
+        seeded = true;
+        return drift;
+    }
+
+    private record Entry(@NonNull Queue.Task task, @NonNull List<String> categories) {}
+
+    /** Periodically checks the index against the queue. */
+    @Extension
+    public static final class Reconciler extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+
+        @Override
+        protected void doRun() {
+            PendingItemsIndex.get().reconcile();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PendingItemsIndex.class.getName());
+}
@@ -0,0 +1,59 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link ParameterFingerprint} of each queue item of a job limited to one build with matching parameters.
+ *
+ * <p>The fingerprint is computed once, when the item enters the queue, so that the item can be checked against the
+ * running builds again and again while it waits without filtering its parameters every time. It is computed again only
+ * if the parameters of the item or the configuration of its job change while it is in the queue. Fingerprints are not
+ * stored as actions of the items, which would carry them over to the builds.
+ */
+@Extension
+public class QueuedParameterFingerprints extends QueueListener {
+
+    private final ConcurrentMap<Long, ParameterFingerprint> fingerprints = new ConcurrentHashMap<>();
+
+    @NonNull
+    public static QueuedParameterFingerprints get() {
+        return ExtensionList.lookupSingleton(QueuedParameterFingerprints.class);
+    }
+
+    /**
+     * @param item a queue item.
+     * @param names the names of the parameters to compare, or an empty set to compare all parameters.
+     * @return the keys of the compared parameters of the item.
+     */
+    @NonNull
+    Set<Object> keysOf(@NonNull Queue.Item item, @NonNull Set<String> names) {
+        ParametersAction source = item.getAction(ParametersAction.class);
+        ParameterFingerprint fingerprint = fingerprints.get(item.getId());
+        if (fingerprint == null || !fingerprint.isFor(source, names)) {
+            fingerprint = ParameterFingerprint.of(source, names);
+            fingerprints.put(item.getId(), fingerprint);
+        }
+        return fingerprint.keys();
+    }
+
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem wi) {
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.get().getThrottleJobProperty(wi.task);
+        if (tjp != null && tjp.getThrottleEnabled() && tjp.isLimitOneJobWithMatchingParams()) {
+            keysOf(wi, tjp.getParamNamesToCompare());
+        }
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        fingerprints.remove(li.getId());
+    }
+}
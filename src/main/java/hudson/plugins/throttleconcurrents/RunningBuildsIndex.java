@@ -0,0 +1,371 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.SubTask;
+import hudson.model.queue.WorkUnit;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Live index of the builds currently occupying an executor, keyed by the task they were started for.
+ *
+ * <p>Executors are recorded when their work leaves the queue, which happens while the queue lock is still held, so
+ * {@link ThrottleQueueTaskDispatcher} never sees a started build that has not been counted yet. They are dropped
+ * again when the executor reports the task as completed. {@link Reconciler} periodically compares the index with
+ * what the executors are actually running and repairs any drift, e.g. from builds that were already running when
+ * the index was created.
+ *
+ * <p>Only builds that {@link ThrottleQueueTaskDispatcher#mayBeThrottled} are recorded, as no throttle check ever asks
+ * about the others. Finding the categories and parameters of a build may walk its flow graph and hash its parameters,
+ * so that is done before taking the lock of the index.
+ */
+@Extension
+public class RunningBuildsIndex extends QueueListener implements ExecutorListener {
+
+    /** The task each busy executor is working on, along with the node it runs on. */
+    private final ConcurrentMap<Executor, Occupant> occupants = new ConcurrentHashMap<>();
+
+    /** Number of busy executors per task, across all nodes. */
+    private final ConcurrentMap<SubTask, Integer> totalCounts = new ConcurrentHashMap<>();
+
+    /** Number of busy executors per task and node. */
+    private final ConcurrentMap<Slot, Integer> nodeCounts = new ConcurrentHashMap<>();
+
+    /** Number of busy executors per category, on each node and in total. */
+    private final CategoryCounts categoryCounts = new CategoryCounts();
+
+    /** Parameters of the build each busy executor is working on, by name of the job. */
+    private final ConcurrentMap<String, ConcurrentMap<Executor, Set<Object>>> parametersByJob =
+            new ConcurrentHashMap<>();
+
+    private volatile boolean seeded;
+
+    @NonNull
+    public static RunningBuildsIndex get() {
+        return ExtensionList.lookupSingleton(RunningBuildsIndex.class);
+    }
+
+    /**
+     * @param node the node to look at.
+     * @param task the task to count.
+     * @return the number of executors (including one-off executors) of the given node running the given task.
+     */
+    int countOnNode(@NonNull Node node, @NonNull SubTask task) {
+        ensureSeeded();
+        Integer count = nodeCounts.get(new Slot(node.getNodeName(), task));
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @param task the task to count.
+     * @return the number of executors (including one-off executors) running the given task on any node.
+     */
+    int countOnAllNodes(@NonNull SubTask task) {
+        ensureSeeded();
+        Integer count = totalCounts.get(task);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @param category the category name.
+     * @return the number of executors running a build or a throttled {@code node} block in the given category, on
+     *     any node.
+     */
+    int countCategoryOnAllNodes(@NonNull String category) {
+        ensureSeeded();
+        return categoryCounts.total(category);
+    }
+
+    /**
+     * @param category the category name.
+     * @return the number of executors running a build of a Pipeline job in the given category, on any node, not
+     *     counting its {@code node} blocks.
+     */
+    int countPipelineJobsInCategory(@NonNull String category) {
+        ensureSeeded();
+        return categoryCounts.pipelineJobTotal(category);
+    }
+
+    /**
+     * @param node the node to look at.
+     * @param category the category name.
+     * @return the number of executors (including one-off executors) of the given node running a build or a throttled
+     *     {@code node} block in the given category.
+     */
+    int countCategoryOnNode(@NonNull Node node, @NonNull String category) {
+        ensureSeeded();
+        return categoryCounts.onNode(node.getNodeName(), category);
+    }
+
+    /**
+     * @param jobName the {@link Queue.Task#getName} of a job.
+     * @param parameters the keys of the parameters to look for, as in {@link ParameterFingerprint}.
+     * @return the keys of the parameters of a running build of the given job having all the given parameters (and
+     *     possibly more), or null if there is none.
+     */
+    @CheckForNull
+    Set<Object> findRunningWithParameters(@NonNull String jobName, @NonNull Collection<?> parameters) {
+        ensureSeeded();
+        Map<Executor, Set<Object>> running = parametersByJob.get(jobName);
+        if (running != null) {
+            for (Set<Object> runningParameters : running.values()) {
+                if (runningParameters.containsAll(parameters)) {
+                    return runningParameters;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        if (li.outcome == null) {
+            // cancelled
+            return;
+        }
+        for (WorkUnit wu : li.outcome.getWorkUnits()) {
+            Executor executor = wu.getExecutor();
+            if (executor != null) {
+                add(executor, wu.work, wu);
+            }
+        }
+    }
+
+    @Override
+    public void taskAccepted(Executor executor, Queue.Task task) {
+        // By now the executable exists, so record the task it reports as its parent. That is what the executor
+        // scan used to compare against, and differs from the work unit for e.g. Pipeline builds resumed after a
+        // restart.
+        Queue.Executable executable = executor.getCurrentExecutable();
+        if (executable != null) {
+            add(executor, executable.getParent(), executor.getCurrentWorkUnit());
+        }
+    }
+
+    @Override
+    public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+        remove(executor);
+    }
+
+    @Override
+    public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+        remove(executor);
+    }
+
+    private void add(@NonNull Executor executor, @NonNull SubTask task, @CheckForNull WorkUnit wu) {
+        Slot slot = new Slot(executor.getOwner().getName(), task);
+        Occupant previous = occupants.get(executor);
+        if (previous != null && previous.slot().equals(slot)) {
+            return;
+        }
+        Occupant occupant = occupantOf(slot.nodeName(), task, wu);
+        synchronized (this) {
+            Occupant current = occupants.get(executor);
+            if (occupant == null) {
+                // Replaces an untracked task, or a task no longer throttled.
+                if (current != null && occupants.remove(executor, current)) {
+                    decrement(current);
+                    forgetParameters(executor, current);
+                }
+            } else if (current == null || !current.slot().equals(slot)) {
+                put(executor, occupant);
+            }
+        }
+    }
+
+    /** @return what to credit an executor running the given task with, or null if the task is never throttled. */
+    @CheckForNull
+    private static Occupant occupantOf(@NonNull String nodeName, @NonNull SubTask task, @CheckForNull WorkUnit wu) {
+        ThrottleQueueTaskDispatcher dispatcher = ThrottleQueueTaskDispatcher.get();
+        if (!dispatcher.mayBeThrottled(task instanceof Queue.Task t ? t : task.getOwnerTask())) {
+            return null;
+        }
+        return new Occupant(
+                new Slot(nodeName, task),
+                dispatcher.categoriesOfRunningTask(task),
+                ParameterFingerprint.keysOf(dispatcher.getParametersFromWorkUnit(wu), Set.of()));
+    }
+
+    private synchronized void remove(@NonNull Executor executor) {
+        Occupant previous = occupants.remove(executor);
+        if (previous != null) {
+            decrement(previous);
+            forgetParameters(executor, previous);
+        }
+    }
+
+    private void put(@NonNull Executor executor, @NonNull Occupant occupant) {
+        Occupant previous = occupants.put(executor, occupant);
+        if (previous != null) {
+            decrement(previous);
+            forgetParameters(executor, previous);
+        }
+        increment(occupant);
+        parametersByJob
+                .computeIfAbsent(occupant.jobName(), k -> new ConcurrentHashMap<>())
+                .put(executor, occupant.parameters());
+    }
+
+    private void forgetParameters(@NonNull Executor executor, @NonNull Occupant occupant) {
+        parametersByJob.computeIfPresent(occupant.jobName(), (k, running) -> {
+            running.remove(executor);
+            return running.isEmpty() ? null : running;
+        });
+    }
+
+    private void increment(@NonNull Occupant occupant) {
+        totalCounts.merge(occupant.slot().task(), 1, Integer::sum);
+        nodeCounts.merge(occupant.slot(), 1, Integer::sum);
+        categoryCounts.credit(occupant.slot().nodeName(), occupant.categories(), occupant.isPipelineJob());
+    }
+
+    private void decrement(@NonNull Occupant occupant) {
+        totalCounts.computeIfPresent(occupant.slot().task(), (k, v) -> v > 1 ? v - 1 : null);
+        nodeCounts.computeIfPresent(occupant.slot(), (k, v) -> v > 1 ? v - 1 : null);
+        categoryCounts.debit(occupant.slot().nodeName(), occupant.categories(), occupant.isPipelineJob());
+    }
+
+    private void ensureSeeded() {
+        if (!seeded) {
+            reconcile();
+        }
+    }
+
+    /**
+     * Compare the index with what the executors are actually running, and repair any difference.
+     *
+     * @return the number of executors whose entry had to be repaired.
+     */
+    int reconcile() {
+        // Classify what every executor (including one-off executors) is running before taking any lock, which also
+        // catches categories that changed since the executor was first recorded.
+        Map<Executor, Queue.Executable> running = new HashMap<>();
+        Map<Executor, Occupant> expected = new HashMap<>();
+        for (Computer computer : Jenkins.get().getComputers()) {
+            for (Executor executor : computer.getAllExecutors()) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable != null) {
+                    running.put(executor, executable);
+                    Occupant occupant =
+                            occupantOf(computer.getName(), executable.getParent(), executor.getCurrentWorkUnit());
+                    if (occupant != null) {
+                        expected.put(executor, occupant);
+                    }
+                }
+            }
+        }
+        int[] drift = new int[1];
+        Queue.withLock(() -> {
+            drift[0] = reconcileLocked(running, expected);
+        });
+        return drift[0];
+    }
+
+    /**
+     * @param running the executable each busy executor was running when classified.
+     * @param expected what to credit the executors running a task that may be throttled with.
+     */
+    private synchronized int reconcileLocked(
+            @NonNull Map<Executor, Queue.Executable> running, @NonNull Map<Executor, Occupant> expected) {
+        int drift = 0;
+        for (Map.Entry<Executor, Occupant> entry : expected.entrySet()) {
+            Executor executor = entry.getKey();
+            // An executor that moved on since is left to the queue and executor events.
+            if (executor.getCurrentExecutable() == running.get(executor)
+                    && !entry.getValue().equals(occupants.get(executor))) {
+                put(executor, entry.getValue());
+                drift++;
+            }
+        }
+        for (Map.Entry<Executor, Occupant> entry : occupants.entrySet()) {
+            Executor executor = entry.getKey();
+            if (expected.containsKey(executor)) {
+                continue;
+            }
+            // Idle, or still running what was found not to be throttled; not a build started since.
+            Queue.Executable executable = executor.getCurrentExecutable();
+            boolean stale = !executor.isBusy() || executable != null && executable == running.get(executor);
+            if (stale && occupants.remove(executor, entry.getValue())) {
+                decrement(entry.getValue());
+                forgetParameters(executor, entry.getValue());
+                drift++;
+            }
+        }
+
+        retainConfiguredCategories();
+
+        if (drift > 0 && seeded) {
+            LOGGER.log(Level.FINE, "Repaired {0} out-of-date entries in the running builds index", drift);
+        }
+        seeded = true;
+        return drift;
+    }
+
+    /**
+     * Release what the index keeps for categories removed from the configuration, once nothing runs in them any more.
+     */
+    synchronized void retainConfiguredCategories() {
+        Set<String> configured = new HashSet<>();
+        for (ThrottleJobProperty.ThrottleCategory category :
+                ThrottleJobProperty.fetchDescriptor().getCategories()) {
+            if (category.getCategoryName() != null) {
+                configured.add(category.getCategoryName());
+            }
+        }
+        categoryCounts.retainCategories(configured);
+    }
+
+    /** A task running on a given node, identified by its name. */
+    private record Slot(@NonNull String nodeName, @NonNull SubTask task) {}
+
+    /**
+     * What a busy executor is credited to: its task and node, the categories the task counted towards, and the keys
+     * of the parameters of its build.
+     */
+    private record Occupant(@NonNull Slot slot, @NonNull List<String> categories, @NonNull Set<Object> parameters) {
+        @NonNull
+        String jobName() {
+            return slot.task().getOwnerTask().getName();
+        }
+
+        boolean isPipelineJob() {
+            return slot.task() instanceof Queue.Task task && ThrottleQueueTaskDispatcher.isPipelineJob(task);
+        }
+    }
+
+    /** Periodically checks the index against reality. */
+    @Extension
+    public static final class Reconciler extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+
+        @Override
+        protected void doRun() {
+            RunningBuildsIndex.get().reconcile();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RunningBuildsIndex.class.getName());
+}
@@ -0,0 +1,248 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionList;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionListener;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+
+/**
+ * Live index of the running Pipeline builds of each job, whether or not they currently occupy an executor.
+ *
+ * <p>Flow executions are recorded when they are created or resumed and dropped when they complete. The first lookup
+ * seeds the index from {@link FlowExecutionList}, to account for executions that were already running when the index
+ * was created; after that, counting the running builds of a job no longer requires resolving the owner of every
+ * running execution.
+ *
+ * <p>Each build is also counted towards the categories its job is registered in by {@link CategoryMembershipIndex}
+ * when it is recorded, so that the running Pipeline builds of a category can be read at once rather than summed over
+ * its members. Categories changed while a build runs are caught up with by the periodic check below.
+ *
+ * <p>An execution may complete while it is being added, e.g. while seeding, so it is checked again once added and
+ * dropped if it has completed in the meantime. The index is also periodically checked against
+ * {@link FlowExecutionList}, to repair anything missed anyway.
+ */
+@Extension
+public class RunningPipelinesIndex extends FlowExecutionListener {
+
+    private static final Logger LOGGER = Logger.getLogger(RunningPipelinesIndex.class.getName());
+
+    /** The owners of the running flow executions, by job, with the categories each was counted towards. */
+    private final ConcurrentMap<Queue.Task, ConcurrentMap<FlowExecutionOwner, Set<String>>> running =
+            new ConcurrentHashMap<>();
+
+    /** Number of running builds per category. Only changed while holding the lock of the job in {@link #running}. */
+    private final ConcurrentMap<String, AtomicInteger> byCategory = new ConcurrentHashMap<>();
+
+    private volatile boolean seeded;
+
+    @NonNull
+    public static RunningPipelinesIndex get() {
+        return ExtensionList.lookupSingleton(RunningPipelinesIndex.class);
+    }
+
+    /**
+     * @param job a Pipeline job.
+     * @return the number of running builds of the job.
+     */
+    int count(@NonNull Queue.Task job) {
+        ensureSeeded();
+        Map<FlowExecutionOwner, Set<String>> owners = running.get(job);
+        return owners != null ? owners.size() : 0;
+    }
+
+    /**
+     * @param category the category name.
+     * @return the number of running builds of Pipeline jobs with throttling enabled in the given category.
+     */
+    int countCategory(@NonNull String category) {
+        ensureSeeded();
+        AtomicInteger count = byCategory.get(category);
+        return count != null ? count.get() : 0;
+    }
+
+    @Override
+    public void onCreated(@NonNull FlowExecution execution) {
+        add(execution);
+    }
+
+    @Override
+    public void onResumed(@NonNull FlowExecution execution) {
+        add(execution);
+    }
+
+    @Override
+    public void onCompleted(@NonNull FlowExecution execution) {
+        remove(execution.getOwner());
+    }
+
+    /** @return whether the execution was not recorded yet, and still running once recorded. */
+    private boolean add(@NonNull FlowExecution execution) {
+        if (execution.isComplete()) {
+            return false;
+        }
+        FlowExecutionOwner owner = execution.getOwner();
+        Queue.Task job = jobOf(owner);
+        if (job == null) {
+            return false;
+        }
+        Set<String> categories = categoriesOf(job);
+        boolean[] added = new boolean[1];
+        running.compute(job, (k, owners) -> {
+            if (owners == null) {
+                owners = new ConcurrentHashMap<>();
+            }
+            if (owners.putIfAbsent(owner, categories) == null) {
+                credit(categories, 1);
+                added[0] = true;
+            }
+            return owners;
+        });
+        // onCompleted may have been called since the check above, and found nothing to remove.
+        if (execution.isComplete()) {
+            remove(job, owner);
+            return false;
+        }
+        return added[0];
+    }
+
+    private void remove(@NonNull FlowExecutionOwner owner) {
+        Queue.Task job = jobOf(owner);
+        if (job != null) {
+            remove(job, owner);
+        } else {
+            // The build can no longer be resolved, so look for it everywhere.
+            for (Queue.Task k : List.copyOf(running.keySet())) {
+                remove(k, owner);
+            }
+        }
+    }
+
+    /** @return whether the owner was recorded for the job. */
+    private boolean remove(@NonNull Queue.Task job, @NonNull FlowExecutionOwner owner) {
+        boolean[] removed = new boolean[1];
+        running.computeIfPresent(job, (k, owners) -> {
+            Set<String> categories = owners.remove(owner);
+            if (categories != null) {
+                credit(categories, -1);
+                removed[0] = true;
+            }
+            return owners.isEmpty() ? null : owners;
+        });
+        return removed[0];
+    }
+
+    /** @return whether the categories of the owner had to be changed to those given. */
+    private boolean recategorize(
+            @NonNull Queue.Task job, @NonNull FlowExecutionOwner owner, @NonNull Set<String> categories) {
+        boolean[] changed = new boolean[1];
+        running.computeIfPresent(job, (k, owners) -> {
+            Set<String> previous = owners.get(owner);
+            if (previous != null && !previous.equals(categories)) {
+                owners.put(owner, categories);
+                credit(previous, -1);
+                credit(categories, 1);
+                changed[0] = true;
+            }
+            return owners;
+        });
+        return changed[0];
+    }
+
+    private void credit(@NonNull Set<String> categories, int delta) {
+        for (String category : categories) {
+            byCategory.computeIfAbsent(category, c -> new AtomicInteger()).addAndGet(delta);
+        }
+    }
+
+    @NonNull
+    private static Set<String> categoriesOf(@NonNull Queue.Task job) {
+        return job instanceof Job<?, ?> j ? CategoryMembershipIndex.get().getCategories(j) : Set.of();
+    }
+
+    @CheckForNull
+    private static Queue.Task jobOf(@NonNull FlowExecutionOwner owner) {
+        try {
+            Queue.Executable executable = owner.getExecutable();
+            return executable != null ? executable.getParent() : null;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error getting the build of " + owner, e);
+            return null;
+        }
+    }
+
+    private void ensureSeeded() {
+        if (!seeded) {
+            reconcile();
+        }
+    }
+
+    /**
+     * Compare the index with the running flow executions, and repair any difference, e.g. from an execution that was
+     * recorded after it completed.
+     *
+     * @return the number of executions whose entry had to be repaired.
+     */
+    synchronized int reconcile() {
+        int drift = 0;
+        for (FlowExecution execution : FlowExecutionList.get()) {
+            if (add(execution)) {
+                drift++;
+            }
+        }
+        // Only drop executions known to be over, not those created since the list above was read.
+        for (Queue.Task job : List.copyOf(running.keySet())) {
+            Map<FlowExecutionOwner, Set<String>> owners = running.get(job);
+            if (owners == null) {
+                continue;
+            }
+            Set<String> categories = categoriesOf(job);
+            for (FlowExecutionOwner owner : List.copyOf(owners.keySet())) {
+                FlowExecution execution = owner.getOrNull();
+                if (execution == null || execution.isComplete()) {
+                    if (remove(job, owner)) {
+                        drift++;
+                    }
+                } else if (recategorize(job, owner, categories)) {
+                    drift++;
+                }
+            }
+        }
+
+        if (drift > 0 && seeded) {
+            LOGGER.log(Level.FINE, "Repaired {0} out-of-date entries in the running pipelines index", drift);
+        }
+        seeded = true;
+        return drift;
+    }
+
+    /** Periodically checks the index against the running flow executions. */
+    @Extension
+    public static final class Reconciler extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+
+        @Override
+        protected void doRun() {
+            RunningPipelinesIndex.get().reconcile();
+        }
+    }
+}
@@ -4,32 +4,34 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.Util;
+import hudson.init.Terminator;
 import hudson.matrix.MatrixConfiguration;
 import hudson.matrix.MatrixProject;
 import hudson.matrix.MatrixRun;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.Item;
-import hudson.model.ItemGroup;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 import hudson.model.Queue;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
 import hudson.util.CopyOnWriteMap;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.BiFunction;
 import java.util.function.BinaryOperator;
@@ -40,10 +42,7 @@ import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
-import org.jenkinsci.plugins.workflow.flow.FlowExecution;
-import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -69,9 +68,11 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
     // and is empty, or has one arg name, or a token-separated list of
     // such names (see PARAMS_LIMIT_SEPARATOR below).
     // The paramsToCompare is an array of arg name strings, one per
-    // list entry, processed from paramsToUseForLimit.
+    // list entry, processed from paramsToUseForLimit, and paramNamesToCompare
+    // is the same names as an immutable hashed set.
     private String paramsToUseForLimit;
     private transient List<String> paramsToCompare;
+    private transient volatile Set<String> paramNamesToCompare;
 
     /*
      * Documentation only stated "," but its use was broken for so long that probably people used
@@ -145,16 +146,13 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
     @Override
     protected void setOwner(Job<?, ?> owner) {
         super.setOwner(owner);
-        if (throttleEnabled && categories != null) {
-            DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
-            synchronized (descriptor.propertiesByCategoryLock) {
-                for (String c : categories) {
-                    Map<ThrottleJobProperty, Void> properties =
-                            descriptor.propertiesByCategory.computeIfAbsent(c, k -> new WeakHashMap<>());
-                    properties.put(this, null);
-                }
-            }
+        DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+        if (throttleEnabled) {
+            descriptor.throttledJobs.add(owner.getFullName());
+        } else {
+            descriptor.throttledJobs.remove(owner.getFullName());
         }
+        CategoryMembershipIndex.get().update(owner, this);
     }
 
     public boolean getThrottleEnabled() {
@@ -227,6 +225,19 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
         return paramsToCompare;
     }
 
+    /**
+     * @return the names of the parameters to compare, as an immutable set; empty to compare all parameters.
+     */
+    @NonNull
+    Set<String> getParamNamesToCompare() {
+        Set<String> names = paramNamesToCompare;
+        if (names == null) {
+            names = Set.copyOf(getParamsToCompare());
+            paramNamesToCompare = names;
+        }
+        return names;
+    }
+
     /**
      * Compute the parameters to use for the comparison when checking when another build with the
      * same parameters is running on a node.
@@ -258,120 +269,7 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
      */
     @NonNull
     static Map<String, List<String>> getCategoriesForRunByFlowNode(@NonNull Run<?, ?> run) {
-        Map<String, List<String>> categoriesByNode = new HashMap<>();
-
-        final DescriptorImpl descriptor = fetchDescriptor();
-
-        for (ThrottleCategory cat : descriptor.getCategories()) {
-            Map<String, List<String>> runs = descriptor.getThrottledPipelinesForCategory(cat.getCategoryName());
-            List<String> nodeIds = runs.get(run.getExternalizableId());
-            if (nodeIds != null) {
-                for (String nodeId : nodeIds) {
-                    List<String> categories = categoriesByNode.computeIfAbsent(nodeId, k -> new ArrayList<>());
-                    categories.add(cat.getCategoryName());
-                }
-            }
-        }
-
-        return categoriesByNode;
-    }
-
-    /**
-     * Get all {@link Queue.Task}s with {@link ThrottleJobProperty}s attached to them.
-     *
-     * @param category a non-null string, the category name.
-     * @return A list of {@link Queue.Task}s with {@link ThrottleJobProperty} attached.
-     */
-    static List<Queue.Task> getCategoryTasks(@NonNull String category) {
-        assert !StringUtils.isEmpty(category);
-        List<Queue.Task> categoryTasks = new ArrayList<>();
-        Collection<ThrottleJobProperty> properties;
-        DescriptorImpl descriptor = fetchDescriptor();
-        synchronized (descriptor.propertiesByCategoryLock) {
-            Map<ThrottleJobProperty, Void> _properties = descriptor.propertiesByCategory.get(category);
-            properties = _properties != null ? new ArrayList<>(_properties.keySet()) : Collections.emptySet();
-        }
-        for (ThrottleJobProperty t : properties) {
-            if (t.getThrottleEnabled()) {
-                if (t.getCategories() != null && t.getCategories().contains(category)) {
-                    Job<?, ?> p = t.owner;
-                    if (
-                    /*is a task*/ p instanceof Queue.Task
-                            && /* not deleted */ getItem(p.getParent(), p.getName()) == p
-                            &&
-                            /* has not since been reconfigured */ p.getProperty(ThrottleJobProperty.class) == t) {
-                        categoryTasks.add((Queue.Task) p);
-                        if (p instanceof MatrixProject && t.isThrottleMatrixConfigurations()) {
-                            categoryTasks.addAll(((MatrixProject) p).getActiveConfigurations());
-                        }
-                    }
-                }
-            }
-        }
-
-        return categoryTasks;
-    }
-
-    /**
-     * Gets a map of IDs for {@link Run}s to a list of {@link FlowNode}s currently running for a given category. Removes any
-     * no longer valid run/flow node combinations from the internal tracking for that category, due to the run not being
-     * found, the run not being a {@link FlowExecutionOwner.Executable}, the run no longer building, etc
-     *
-     * @param category The category name to look for.
-     * @return a map of IDs for {@link Run}s to lists of {@link FlowNode}s for this category, if any. May be empty.
-     */
-    @NonNull
-    static Map<String, List<FlowNode>> getThrottledPipelineRunsForCategory(@NonNull String category) {
-        Map<String, List<FlowNode>> throttledPipelines = new TreeMap<>();
-
-        final DescriptorImpl descriptor = fetchDescriptor();
-        for (Map.Entry<String, List<String>> currentPipeline :
-                descriptor.getThrottledPipelinesForCategory(category).entrySet()) {
-            Run<?, ?> flowNodeRun = Run.fromExternalizableId(currentPipeline.getKey());
-            List<FlowNode> flowNodes = new ArrayList<>();
-
-            if (flowNodeRun == null
-                    || !(flowNodeRun instanceof FlowExecutionOwner.Executable)
-                    || !flowNodeRun.isBuilding()) {
-                descriptor.removeAllFromPipelineRunForCategory(currentPipeline.getKey(), category, null);
-            } else {
-                FlowExecutionOwner executionOwner =
-                        ((FlowExecutionOwner.Executable) flowNodeRun).asFlowExecutionOwner();
-                if (executionOwner != null) {
-                    FlowExecution execution = executionOwner.getOrNull();
-                    if (execution == null) {
-                        descriptor.removeAllFromPipelineRunForCategory(currentPipeline.getKey(), category, null);
-                    } else {
-                        for (String flowNodeId : currentPipeline.getValue()) {
-                            try {
-                                FlowNode node = execution.getNode(flowNodeId);
-                                if (node != null) {
-                                    flowNodes.add(node);
-                                } else {
-                                    descriptor.removeThrottledPipelineForCategory(
-                                            currentPipeline.getKey(), flowNodeId, category, null);
-                                }
-                            } catch (IOException e) {
-                                // do nothing
-                            }
-                        }
-                    }
-                }
-            }
-            if (!flowNodes.isEmpty()) {
-                throttledPipelines.put(currentPipeline.getKey(), flowNodes);
-            }
-        }
-
-        return throttledPipelines;
-    }
-
-    private static Item getItem(ItemGroup<?> group, String name) {
-        if (group instanceof Jenkins) {
-            return ((Jenkins) group).getItemMap().get(name);
-        } else {
-            return group.getItem(name);
-        }
+        return fetchDescriptor().getCategoriesForRunByFlowNode(run.getExternalizableId());
     }
 
     public static DescriptorImpl fetchDescriptor() {
@@ -385,26 +283,28 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
 
         private List<ThrottleCategory> categories;
 
+        /** Snapshot of {@link #categories} indexed by name, rebuilt whenever a new list of categories is set. */
+        @CheckForNull
+        private transient volatile CategoryRegistry categoryRegistry;
+
+        /** Persisted form of {@link #throttledPipelines}, only kept up to date when saving. */
         private Map<String, Map<String, List<String>>> throttledPipelinesByCategory;
 
-        /** Map from category names, to properties including that category. */
-        private transient Map<String, Map<ThrottleJobProperty, Void>> propertiesByCategory = new HashMap<>();
-        /** A sync object for {@link #propertiesByCategory} */
-        private final transient Object propertiesByCategoryLock = new Object();
+        private transient volatile ThrottledPipelines throttledPipelines = new ThrottledPipelines();
+
+        @CheckForNull
+        private transient volatile ThrottledPipelinesJournal journal;
+
+        /**
+         * Full names of the jobs that had a property with throttling enabled when last configured. May still include
+         * jobs whose property has since been removed, but never misses a throttled job.
+         */
+        private final transient Set<String> throttledJobs = ConcurrentHashMap.newKeySet();
 
         public DescriptorImpl() {
             super(ThrottleJobProperty.class);
-            synchronized (propertiesByCategoryLock) {
-                load();
-                // Explictly handle the persisted data from the version 1.8.1
-                if (propertiesByCategory == null) {
-                    propertiesByCategory = new HashMap<>();
-                }
-                if (!propertiesByCategory.isEmpty()) {
-                    propertiesByCategory.clear();
-                    save(); // Save the configuration to remove obsolete data
-                }
-            }
+            // The propertiesByCategory persisted by version 1.8.1 is no longer read, and dropped on the next save.
+            load();
         }
 
         @Override
@@ -430,6 +330,7 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
 
             req.bindJSON(this, formData);
             save();
+            RunningBuildsIndex.get().retainConfiguredCategories();
             return true;
         }
 
@@ -462,29 +363,36 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
         }
 
         public ThrottleCategory getCategoryByName(String categoryName) {
-            ThrottleCategory category = null;
+            return categoryRegistry().byName().get(categoryName);
+        }
 
-            if (categories != null) {
-                for (ThrottleCategory tc : categories) {
-                    if (tc.getCategoryName().equals(categoryName)) {
-                        category = tc;
-                    }
-                }
+        @NonNull
+        private CategoryRegistry categoryRegistry() {
+            List<ThrottleCategory> current = categories;
+            CategoryRegistry registry = categoryRegistry;
+            if (registry == null || registry.source() != current) {
+                registry = CategoryRegistry.of(current);
+                categoryRegistry = registry;
             }
-
-            return category;
+            return registry;
         }
 
         public void setCategories(List<ThrottleCategory> categories) {
-            this.categories = new CopyOnWriteArrayList<>(categories);
+            List<ThrottleCategory> newCategories = new CopyOnWriteArrayList<>(categories);
+            this.categories = newCategories;
+            this.categoryRegistry = CategoryRegistry.of(newCategories);
         }
 
+        /**
+         * @return the categories, not to be modified; use {@link #setCategories} instead so that
+         *     {@link #getCategoryByName} sees the change.
+         */
         public List<ThrottleCategory> getCategories() {
             if (categories == null) {
                 categories = new CopyOnWriteArrayList<>();
             }
 
-            return categories;
+            return Collections.unmodifiableList(categories);
         }
 
         @SuppressWarnings("lgtm[jenkins/csrf]")
@@ -510,10 +418,53 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
         public void load() {
             super.load();
             initThrottledPipelines();
-            LOGGER.log(Level.FINE, "load: {0}", throttledPipelinesByCategory);
+            LOGGER.log(Level.FINE, "load: {0}", throttledPipelines);
         }
 
         private synchronized void initThrottledPipelines() {
+            // Write out what the current journal still buffers before reading it back.
+            if (journal != null) {
+                throttledPipelines.setJournal(null);
+                journal.close();
+                journal = null;
+            }
+
+            // The journal has the latest state, the configuration file only the state as of the last save.
+            File journalFile = getJournalFile();
+            ThrottledPipelines replayed = ThrottledPipelinesJournal.replay(journalFile);
+            throttledPipelines = replayed != null ? replayed : ThrottledPipelines.of(throttledPipelinesByCategory);
+            migrateThrottledPipelines();
+
+            try {
+                journal = new ThrottledPipelinesJournal(journalFile, throttledPipelines);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to open " + journalFile + ", throttled pipelines will only be "
+                        + "persisted when the configuration is saved", e);
+                journal = null;
+            }
+            throttledPipelines.setJournal(journal);
+        }
+
+        @NonNull
+        private File getJournalFile() {
+            return new File(Jenkins.get().getRootDir(), getId() + ".journal");
+        }
+
+        @Terminator
+        public static void closeJournal() {
+            DescriptorImpl descriptor = fetchDescriptor();
+            if (descriptor != null) {
+                synchronized (descriptor) {
+                    if (descriptor.journal != null) {
+                        descriptor.throttledPipelines.setJournal(null);
+                        descriptor.journal.close();
+                        descriptor.journal = null;
+                    }
+                }
+            }
+        }
+
+        private void migrateThrottledPipelines() {
             if (throttledPipelinesByCategory == null) {
                 throttledPipelinesByCategory = new TreeMap<>();
             } else if (throttledPipelinesByCategory.entrySet().stream()
@@ -543,6 +494,35 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
             }
         }
 
+        /**
+         * @param fullName the {@link Job#getFullName} of a job.
+         * @return false if the job is certainly not throttled, true if it may be.
+         */
+        boolean isThrottledJob(@NonNull String fullName) {
+            return throttledJobs.contains(fullName);
+        }
+
+        /**
+         * @param runId the {@link Run#getExternalizableId} of a run.
+         * @return whether the run has {@code throttle} blocks running.
+         */
+        boolean isThrottledRun(@NonNull String runId) {
+            return throttledPipelines.hasRun(runId);
+        }
+
+        /**
+         * @param runId the {@link Run#getExternalizableId} of a run.
+         * @return a map (possibly empty) from {@link FlowNode#getId} to a list of the names of the existing categories
+         *     recorded for that flow node of the run
+         */
+        @NonNull
+        Map<String, List<String>> getCategoriesForRunByFlowNode(@NonNull String runId) {
+            Map<String, List<String>> result = throttledPipelines.forRun(runId);
+            result.values().forEach(categories -> categories.removeIf(c -> getCategoryByName(c) == null));
+            result.values().removeIf(List::isEmpty);
+            return result;
+        }
+
         /**
          * Converts a map entry's value of a map of string list to use copy-on-write data structures
          * for both the map and contained lists.
@@ -577,93 +557,126 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
         }
 
         @Override
-        public void save() {
+        public synchronized void save() {
+            if (throttledPipelines != null) {
+                throttledPipelinesByCategory = throttledPipelines.toPersistedForm();
+            }
             super.save();
             LOGGER.log(Level.FINE, "save: {0}", throttledPipelinesByCategory);
         }
 
+        /**
+         * @param category the category name.
+         * @return a copy of the map from run IDs to the IDs of the flow nodes throttled in the given category.
+         */
         @NonNull
-        public synchronized Map<String, List<String>> getThrottledPipelinesForCategory(@NonNull String category) {
-            return internalGetThrottledPipelinesForCategory(category);
-        }
-
-        @NonNull
-        private Map<String, List<String>> internalGetThrottledPipelinesForCategory(@NonNull String category) {
-            if (getCategoryByName(category) != null) {
-                if (throttledPipelinesByCategory.containsKey(category)) {
-                    return throttledPipelinesByCategory.get(category);
-                }
+        public Map<String, List<String>> getThrottledPipelinesForCategory(@NonNull String category) {
+            if (getCategoryByName(category) == null) {
+                return new CopyOnWriteMap.Tree<>();
             }
-            return new CopyOnWriteMap.Tree<>();
+            return throttledPipelines.forCategory(category);
         }
 
-        public synchronized void addThrottledPipelineForCategory(
+        public void addThrottledPipelineForCategory(
                 @NonNull String runId, @NonNull String flowNodeId, @NonNull String category, TaskListener listener) {
             if (getCategoryByName(category) == null) {
                 if (listener != null) {
                     listener.getLogger().println(Messages.ThrottleJobProperty_DescriptorImpl_NoSuchCategory(category));
                 }
             } else {
-                Map<String, List<String>> currentPipelines = internalGetThrottledPipelinesForCategory(category);
-
-                List<String> flowNodes = currentPipelines.get(runId);
-                if (flowNodes == null) {
-                    flowNodes = new CopyOnWriteArrayList<>();
-                }
-                flowNodes.add(flowNodeId);
-                currentPipelines.put(runId, flowNodes);
-                throttledPipelinesByCategory.put(category, currentPipelines);
+                throttledPipelines.add(runId, flowNodeId, category);
             }
         }
 
-        public synchronized void removeThrottledPipelineForCategory(
+        public void removeThrottledPipelineForCategory(
                 @NonNull String runId, @NonNull String flowNodeId, @NonNull String category, TaskListener listener) {
             if (getCategoryByName(category) == null) {
                 if (listener != null) {
                     listener.getLogger().println(Messages.ThrottleJobProperty_DescriptorImpl_NoSuchCategory(category));
                 }
             } else {
-                Map<String, List<String>> currentPipelines = internalGetThrottledPipelinesForCategory(category);
-
-                if (!currentPipelines.isEmpty()) {
-                    List<String> flowNodes = currentPipelines.get(runId);
-                    if (flowNodes != null) {
-                        flowNodes.remove(flowNodeId);
-                    }
-                    if (flowNodes != null && !flowNodes.isEmpty()) {
-                        currentPipelines.put(runId, flowNodes);
-                    } else {
-                        currentPipelines.remove(runId);
-                    }
-                }
-
-                if (currentPipelines.isEmpty()) {
-                    throttledPipelinesByCategory.remove(category);
-                } else {
-                    throttledPipelinesByCategory.put(category, currentPipelines);
-                }
+                forgetThrottledPipeline(runId, flowNodeId, category);
             }
         }
 
-        public synchronized void removeAllFromPipelineRunForCategory(
+        public void removeAllFromPipelineRunForCategory(
                 @NonNull String runId, @NonNull String category, TaskListener listener) {
             if (getCategoryByName(category) == null) {
                 if (listener != null) {
                     listener.getLogger().println(Messages.ThrottleJobProperty_DescriptorImpl_NoSuchCategory(category));
                 }
             } else {
-                Map<String, List<String>> currentPipelines = internalGetThrottledPipelinesForCategory(category);
+                forgetThrottledPipelineRun(runId, category);
+            }
+        }
 
-                if (!currentPipelines.isEmpty()) {
-                    currentPipelines.remove(runId);
-                }
-                if (currentPipelines.isEmpty()) {
-                    throttledPipelinesByCategory.remove(category);
-                } else {
-                    throttledPipelinesByCategory.put(category, currentPipelines);
+        /**
+         * @return the names of the categories with throttled pipelines, including categories no longer configured.
+         */
+        @NonNull
+        Set<String> getThrottledPipelineCategories() {
+            return throttledPipelines.categories();
+        }
+
+        /**
+         * Like {@link #getThrottledPipelinesForCategory}, but also for categories no longer configured.
+         *
+         * @param category the category name.
+         * @return a copy of the map from run IDs to the IDs of the flow nodes throttled in the given category.
+         */
+        @NonNull
+        Map<String, List<String>> getTrackedPipelinesForCategory(@NonNull String category) {
+            return throttledPipelines.forCategory(category);
+        }
+
+        /** Like {@link #removeThrottledPipelineForCategory}, but also for categories no longer configured. */
+        void forgetThrottledPipeline(@NonNull String runId, @NonNull String flowNodeId, @NonNull String category) {
+            throttledPipelines.remove(runId, flowNodeId, category);
+        }
+
+        /** Like {@link #removeAllFromPipelineRunForCategory}, but also for categories no longer configured. */
+        void forgetThrottledPipelineRun(@NonNull String runId, @NonNull String category) {
+            throttledPipelines.removeRun(runId, category);
+        }
+
+        /**
+         * Immutable index of a list of categories by name.
+         *
+         * @param source the list the index was built from, to notice when a new list is set.
+         * @param byName the categories by name; the last one wins if several share a name.
+         */
+        private record CategoryRegistry(
+                @CheckForNull List<ThrottleCategory> source, @NonNull Map<String, ThrottleCategory> byName) {
+            static CategoryRegistry of(@CheckForNull List<ThrottleCategory> categories) {
+                Map<String, ThrottleCategory> byName = new HashMap<>();
+                if (categories != null) {
+                    for (ThrottleCategory tc : categories) {
+                        if (tc.getCategoryName() != null) {
+                            byName.put(tc.getCategoryName(), tc);
+                        }
+                    }
                 }
+                return new CategoryRegistry(categories, Collections.unmodifiableMap(byName));
+            }
+        }
+    }
+
+    /** Keeps {@link DescriptorImpl#isThrottledJob} up to date when throttled jobs are renamed, moved or deleted. */
+    @Extension
+    public static class ThrottledJobsListener extends ItemListener {
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            Set<String> throttledJobs = fetchDescriptor().throttledJobs;
+            if (throttledJobs.remove(oldFullName)) {
+                throttledJobs.add(newFullName);
             }
         }
+
+        @Override
+        public void onDeleted(Item item) {
+            fetchDescriptor().throttledJobs.remove(item.getFullName());
+        }
     }
 
     public static final class ThrottleCategory extends AbstractDescribableImpl<ThrottleCategory> {
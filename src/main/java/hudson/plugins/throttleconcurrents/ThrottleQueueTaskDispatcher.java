@@ -4,11 +4,10 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
+import hudson.ExtensionList;
 import hudson.matrix.MatrixConfiguration;
 import hudson.matrix.MatrixProject;
 import hudson.model.Action;
-import hudson.model.Computer;
-import hudson.model.Executor;
 import hudson.model.Job;
 import hudson.model.Node;
 import hudson.model.ParameterValue;
@@ -26,16 +25,17 @@ import hudson.security.ACL;
 import hudson.security.ACLContext;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.workflow.actions.BodyInvocationAction;
-import org.jenkinsci.plugins.workflow.flow.FlowExecution;
-import org.jenkinsci.plugins.workflow.flow.FlowExecutionList;
 import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.graph.StepNode;
@@ -51,17 +51,29 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
     public static boolean USE_FLOW_EXECUTION_LIST = Boolean.parseBoolean(
             System.getProperty(ThrottleQueueTaskDispatcher.class.getName() + ".USE_FLOW_EXECUTION_LIST", "true"));
 
+    @NonNull
+    static ThrottleQueueTaskDispatcher get() {
+        return ExtensionList.lookupSingleton(ThrottleQueueTaskDispatcher.class);
+    }
+
     @Deprecated
     @Override
     public @CheckForNull CauseOfBlockage canTake(Node node, Task task) {
-        if (Jenkins.getAuthentication().equals(ACL.SYSTEM)) {
-            return canTakeImpl(node, task);
+        if (!mayBeThrottled(task)) {
+            return null;
         }
-
-        // Throttle-concurrent-builds requires READ permissions for all projects.
-        try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
-            return canTakeImpl(node, task);
+        long start = DispatcherMetrics.start();
+        CauseOfBlockage cause;
+        if (Jenkins.getAuthentication().equals(ACL.SYSTEM)) {
+            cause = canTakeImpl(node, task);
+        } else {
+            // Throttle-concurrent-builds requires READ permissions for all projects.
+            try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+                cause = canTakeImpl(node, task);
+            }
         }
+        DispatcherMetrics.get().record(DispatcherMetrics.Operation.CAN_TAKE, null, cause != null, start);
+        return cause;
     }
 
     private CauseOfBlockage canTakeImpl(Node node, Task task) {
@@ -104,78 +116,96 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
 
     private CauseOfBlockage throttleCheckForCategoriesOnNode(Node node, Jenkins jenkins, List<String> categories) {
         // If the project is in one or more categories...
-        if (!categories.isEmpty()) {
-            for (String catNm : categories) {
-                // Quick check that catNm itself is a real string.
-                if (catNm != null && !catNm.equals("")) {
-                    List<Task> categoryTasks = ThrottleJobProperty.getCategoryTasks(catNm);
-
-                    ThrottleJobProperty.ThrottleCategory category =
-                            ThrottleJobProperty.fetchDescriptor().getCategoryByName(catNm);
-
-                    // Double check category itself isn't null
-                    if (category != null) {
-                        int runCount = 0;
-                        // Max concurrent per node for category
-                        int maxConcurrentPerNode = getMaxConcurrentPerNodeBasedOnMatchingLabels(
-                                node, category, category.getMaxConcurrentPerNode());
-                        if (maxConcurrentPerNode > 0) {
-                            for (Task catTask : categoryTasks) {
-                                if (jenkins.getQueue().isPending(catTask)) {
-                                    return CauseOfBlockage.fromMessage(
-                                            Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                                }
-                                runCount += buildsOfProjectOnNode(node, catTask);
-                            }
-                            Map<String, List<FlowNode>> throttledPipelines =
-                                    ThrottleJobProperty.getThrottledPipelineRunsForCategory(catNm);
-                            for (Map.Entry<String, List<FlowNode>> entry : throttledPipelines.entrySet()) {
-                                if (hasPendingPipelineForCategory(entry.getValue())) {
-                                    return CauseOfBlockage.fromMessage(
-                                            Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                                }
-                                Run<?, ?> r = Run.fromExternalizableId(entry.getKey());
-                                if (r != null) {
-                                    List<FlowNode> flowNodes = entry.getValue();
-                                    if (r.isBuilding()) {
-                                        runCount += pipelinesOnNode(node, r, flowNodes);
-                                    }
-                                }
-                            }
-                            // This would mean that there are as many or more builds currently running than are allowed.
-                            if (runCount >= maxConcurrentPerNode) {
-                                return CauseOfBlockage.fromMessage(
-                                        Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount));
-                            }
-                        }
-                    }
+        for (String catNm : categories) {
+            // Quick check that catNm itself is a real string.
+            if (catNm != null && !catNm.equals("")) {
+                long start = DispatcherMetrics.start();
+                CauseOfBlockage cause = throttleCheckForCategoryOnNode(node, catNm);
+                DispatcherMetrics.get()
+                        .record(DispatcherMetrics.Operation.CATEGORY_ON_NODE, catNm, cause != null, start);
+                if (cause != null) {
+                    return cause;
                 }
             }
         }
         return null;
     }
 
-    private boolean hasPendingPipelineForCategory(List<FlowNode> flowNodes) {
-        for (Queue.BuildableItem pending : Jenkins.get().getQueue().getPendingItems()) {
-            if (isTaskThrottledPipeline(pending.task, flowNodes)) {
-                return true;
+    @CheckForNull
+    private CauseOfBlockage throttleCheckForCategoryOnNode(Node node, @NonNull String catNm) {
+        ThrottleJobProperty.ThrottleCategory category =
+                ThrottleJobProperty.fetchDescriptor().getCategoryByName(catNm);
+
+        // Double check category itself isn't null
+        if (category != null) {
+            // Max concurrent per node for category
+            int maxConcurrentPerNode = NodeCategoryLimits.get()
+                    .get(
+                            node,
+                            category,
+                            (n, c) -> getMaxConcurrentPerNodeBasedOnMatchingLabels(n, c, c.getMaxConcurrentPerNode()));
+            if (maxConcurrentPerNode > 0) {
+                if (PendingItemsIndex.get().isCategoryPending(catNm)) {
+                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
+                }
+                int runCount = RunningBuildsIndex.get().countCategoryOnNode(node, catNm);
+                // This would mean that there are as many or more builds currently running than are allowed.
+                if (runCount >= maxConcurrentPerNode) {
+                    return CauseOfBlockage.fromMessage(
+                            Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount));
+                }
             }
         }
-
-        return false;
+        return null;
     }
 
     @Override
     public @CheckForNull CauseOfBlockage canRun(Queue.Item item) {
+        if (!mayBeThrottled(item.task)) {
+            return null;
+        }
+        long start = DispatcherMetrics.start();
+        CauseOfBlockage cause = canRunItem(item);
+        DispatcherMetrics.get().record(DispatcherMetrics.Operation.CAN_RUN, null, cause != null, start);
+        return cause;
+    }
+
+    /**
+     * Cheap check made before anything else, so that tasks without any throttling configured cost a hash lookup.
+     *
+     * @param task a task in the queue.
+     * @return false if the task is certainly not throttled, true if it needs to be checked.
+     */
+    boolean mayBeThrottled(@NonNull Task task) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        if (task instanceof PlaceholderTask) {
+            Queue.Executable ownerExecutable = task.getOwnerExecutable();
+            // Not loaded yet: let the full check decide.
+            return !(ownerExecutable instanceof Run<?, ?> run) || descriptor.isThrottledRun(run.getExternalizableId());
+        }
+        if (task instanceof MatrixConfiguration configuration) {
+            return descriptor.isThrottledJob(configuration.getParent().getFullName());
+        }
+        if (task instanceof Job<?, ?> job) {
+            return descriptor.isThrottledJob(job.getFullName());
+        }
+        return false;
+    }
+
+    @CheckForNull
+    private CauseOfBlockage canRunItem(Queue.Item item) {
         ThrottleJobProperty tjp = getThrottleJobProperty(item.task);
         List<String> pipelineCategories = categoriesForPipeline(item.task);
 
         if (!pipelineCategories.isEmpty() || (tjp != null && tjp.getThrottleEnabled())) {
-            if (tjp != null
-                    && tjp.isLimitOneJobWithMatchingParams()
-                    && isAnotherBuildWithSameParametersRunningOnAnyNode(item)) {
-                return CauseOfBlockage.fromMessage(
-                        Messages._ThrottleQueueTaskDispatcher_OnlyOneWithMatchingParameters());
+            if (tjp != null && tjp.isLimitOneJobWithMatchingParams()) {
+                long start = DispatcherMetrics.start();
+                boolean matching = isAnotherBuildWithSameParametersRunningOnAnyNode(item);
+                DispatcherMetrics.get().record(DispatcherMetrics.Operation.MATCHING_PARAMETERS, null, matching, start);
+                if (matching) {
+                    return CauseOfBlockage.fromMessage(
+                            Messages._ThrottleQueueTaskDispatcher_OnlyOneWithMatchingParameters());
+                }
             }
             return canRun(item.task, tjp, pipelineCategories);
         }
@@ -233,7 +263,7 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         if (!shouldBeThrottled(task, tjp) && pipelineCategories.isEmpty()) {
             return null;
         }
-        if (jenkins.getQueue().isPending(task)) {
+        if (PendingItemsIndex.get().isPending(task)) {
             return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
         }
         if (tjp != null) {
@@ -261,141 +291,84 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         for (String catNm : categories) {
             // Quick check that catNm itself is a real string.
             if (catNm != null && !catNm.equals("")) {
-                List<Task> categoryTasks = ThrottleJobProperty.getCategoryTasks(catNm);
-
-                ThrottleJobProperty.ThrottleCategory category =
-                        ThrottleJobProperty.fetchDescriptor().getCategoryByName(catNm);
-
-                // Double check category itself isn't null
-                if (category != null) {
-                    if (category.getMaxConcurrentTotal() > 0) {
-                        int maxConcurrentTotal = category.getMaxConcurrentTotal();
-                        int totalRunCount = 0;
-
-                        for (Task catTask : categoryTasks) {
-                            if (jenkins.getQueue().isPending(catTask)) {
-                                return CauseOfBlockage.fromMessage(
-                                        Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                            }
-                            totalRunCount += buildsOfProjectOnAllNodes(catTask);
-                        }
-                        Map<String, List<FlowNode>> throttledPipelines =
-                                ThrottleJobProperty.getThrottledPipelineRunsForCategory(catNm);
-                        for (Map.Entry<String, List<FlowNode>> entry : throttledPipelines.entrySet()) {
-                            if (hasPendingPipelineForCategory(entry.getValue())) {
-                                return CauseOfBlockage.fromMessage(
-                                        Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                            }
-                            Run<?, ?> r = Run.fromExternalizableId(entry.getKey());
-                            if (r != null) {
-                                List<FlowNode> flowNodes = entry.getValue();
-                                if (r.isBuilding()) {
-                                    totalRunCount += pipelinesOnAllNodes(r, flowNodes);
-                                }
-                            }
-                        }
-
-                        if (totalRunCount >= maxConcurrentTotal) {
-                            return CauseOfBlockage.fromMessage(
-                                    Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount));
-                        }
-                    }
+                long start = DispatcherMetrics.start();
+                CauseOfBlockage cause = throttleCheckForCategoryAllNodes(catNm);
+                DispatcherMetrics.get()
+                        .record(DispatcherMetrics.Operation.CATEGORY_ALL_NODES, catNm, cause != null, start);
+                if (cause != null) {
+                    return cause;
                 }
             }
         }
         return null;
     }
 
-    private boolean isAnotherBuildWithSameParametersRunningOnAnyNode(Queue.Item item) {
-        final Jenkins jenkins = Jenkins.get();
-        if (isAnotherBuildWithSameParametersRunningOnNode(jenkins, item)) {
-            return true;
-        }
+    @CheckForNull
+    private CauseOfBlockage throttleCheckForCategoryAllNodes(@NonNull String catNm) {
+        ThrottleJobProperty.ThrottleCategory category =
+                ThrottleJobProperty.fetchDescriptor().getCategoryByName(catNm);
+
+        // Double check category itself isn't null
+        if (category != null) {
+            if (category.getMaxConcurrentTotal() > 0) {
+                int maxConcurrentTotal = category.getMaxConcurrentTotal();
+                if (PendingItemsIndex.get().isCategoryPending(catNm)) {
+                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
+                }
+
+                RunningBuildsIndex runningBuilds = RunningBuildsIndex.get();
+                int totalRunCount = runningBuilds.countCategoryOnAllNodes(catNm);
+                if (USE_FLOW_EXECUTION_LIST) {
+                    // Pipeline builds resumed after a restart may not have an executor yet, so count their flow
+                    // executions rather than their executors.
+                    totalRunCount += RunningPipelinesIndex.get().countCategory(catNm)
+                            - runningBuilds.countPipelineJobsInCategory(catNm);
+                }
 
-        for (Node node : jenkins.getNodes()) {
-            if (isAnotherBuildWithSameParametersRunningOnNode(node, item)) {
-                return true;
+                if (totalRunCount >= maxConcurrentTotal) {
+                    return CauseOfBlockage.fromMessage(
+                            Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount));
+                }
             }
         }
-        return false;
+        return null;
     }
 
-    private boolean isAnotherBuildWithSameParametersRunningOnNode(Node node, Queue.Item item) {
+    private boolean isAnotherBuildWithSameParametersRunningOnAnyNode(Queue.Item item) {
         ThrottleJobProperty tjp = getThrottleJobProperty(item.task);
         if (tjp == null) {
             // If the property has been occasionally deleted by this call,
             // it does not make sense to limit the throttling by parameter.
             return false;
         }
-        Computer computer = node.toComputer();
-        List<String> paramsToCompare = tjp.getParamsToCompare();
-        List<ParameterValue> itemParams = getParametersFromQueueItem(item);
-
-        if (paramsToCompare.size() > 0) {
-            itemParams = doFilterParams(paramsToCompare, itemParams);
-        }
-
-        // Look at all executors of specified node => computer,
-        // and what work units they are busy with (if any) - and
-        // whether one of these executing units is an instance
-        // of the queued item we were asked to compare to.
-        if (computer != null) {
-            for (Executor exec : computer.getAllExecutors()) {
-                // TODO: refactor into a nameEquals helper method
-                final Queue.Executable currentExecutable = exec.getCurrentExecutable();
-                final SubTask parentTask = currentExecutable != null ? currentExecutable.getParent() : null;
-                if (currentExecutable != null
-                        && parentTask.getOwnerTask().getName().equals(item.task.getName())) {
-                    List<ParameterValue> executingUnitParams = getParametersFromWorkUnit(exec.getCurrentWorkUnit());
-                    executingUnitParams = doFilterParams(paramsToCompare, executingUnitParams);
-
-                    // An already executing work unit (of the same name) can have more
-                    // parameters than the queued item, e.g. due to env injection or by
-                    // unfiltered inheritance of "unsupported officially" from a caller.
-                    // Note that similar inheritance can also get more parameters into
-                    // the queued item than is visibly declared in its job configuration.
-                    // Normally the job configuration should declare all params that are
-                    // listed in its throttle configuration. Jenkins may forbid passing
-                    // undeclared parameters anyway, due to security concerns by default.
-                    // We check here whether the interesting (or all, if not filtered)
-                    // specified params of the queued item are same (glorified key=value
-                    // entries) as ones used in a running work unit, in any order.
-                    if (executingUnitParams.containsAll(itemParams)) {
-                        LOGGER.log(
-                                Level.FINE,
-                                "build (" + exec.getCurrentWorkUnit() + ") with identical parameters ("
-                                        + executingUnitParams
-                                        + ") is already running.");
-                        return true;
-                    }
-                }
-            }
+        Set<Object> itemParams = QueuedParameterFingerprints.get().keysOf(item, tjp.getParamNamesToCompare());
+
+        // An already executing work unit (of the same name) can have more
+        // parameters than the queued item, e.g. due to env injection or by
+        // unfiltered inheritance of "unsupported officially" from a caller.
+        // Note that similar inheritance can also get more parameters into
+        // the queued item than is visibly declared in its job configuration.
+        // Normally the job configuration should declare all params that are
+        // listed in its throttle configuration. Jenkins may forbid passing
+        // undeclared parameters anyway, due to security concerns by default.
+        // We check here whether the interesting (or all, if not filtered)
+        // specified params of the queued item are same (glorified key=value
+        // entries) as ones used in a running work unit, in any order. The
+        // running builds of each job are indexed with their parameters as
+        // hash sets, so that only takes a lookup per parameter.
+        Set<Object> executingUnitParams =
+                RunningBuildsIndex.get().findRunningWithParameters(item.task.getName(), itemParams);
+        if (executingUnitParams != null) {
+            LOGGER.log(
+                    Level.FINE,
+                    "build of " + item.task.getName() + " with identical parameters (" + executingUnitParams
+                            + ") is already running.");
+            return true;
         }
 
         return false;
     }
 
-    /**
-     * Filter job parameters to only include parameters used for throttling
-     * @param params - a list of Strings with parameter names to compare
-     * @param OriginalParams - a list of ParameterValue descendants whose name fields should match
-     * @return a list of ParameterValue descendants whose name fields did match, entries copied from OriginalParams
-     */
-    private List<ParameterValue> doFilterParams(List<String> params, List<ParameterValue> OriginalParams) {
-        if (params.isEmpty()) {
-            return OriginalParams;
-        }
-
-        List<ParameterValue> newParams = new ArrayList<>();
-
-        for (ParameterValue p : OriginalParams) {
-            if (params.contains(p.getName())) {
-                newParams.add(p);
-            }
-        }
-        return newParams;
-    }
-
     public List<ParameterValue> getParametersFromWorkUnit(WorkUnit unit) {
         List<ParameterValue> paramsList = new ArrayList<>();
 
@@ -435,67 +408,105 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
     @NonNull
     private List<String> categoriesForPipeline(Task task) {
         // TODO avoid casting to PlaceholderTask; could task.node.id be replaced with task.affinityKey?
-        if (task instanceof PlaceholderTask placeholderTask) {
-            Queue.Executable ownerExecutable = task.getOwnerExecutable();
-            if (ownerExecutable instanceof Run<?, ?> run) {
-                Map<String, List<String>> categoriesByFlowNode = ThrottleJobProperty.getCategoriesForRunByFlowNode(run);
-                if (!categoriesByFlowNode.isEmpty()) {
-                    try (Timeout t = Timeout.limit(100, TimeUnit.MILLISECONDS)) {
-                        FlowNode firstThrottle = firstThrottleStartNode(placeholderTask.getNode());
-                        if (firstThrottle != null) {
-                            List<String> categories = categoriesByFlowNode.get(firstThrottle.getId());
-                            if (categories != null) {
-                                return categories;
-                            }
-                        }
-                    } catch (IOException | InterruptedException e) {
-                        LOGGER.log(Level.WARNING, "Error getting categories for pipeline {0}: {1}", new Object[] {
-                            task.getDisplayName(), e
-                        });
-                        return new ArrayList<>();
-                    }
+        if (task instanceof PlaceholderTask placeholderTask
+                && task.getOwnerExecutable() instanceof Run<?, ?> run
+                // Most node blocks are in no throttle step at all, so do not walk the flow graph for them.
+                && ThrottleJobProperty.fetchDescriptor().isThrottledRun(run.getExternalizableId())) {
+            long start = DispatcherMetrics.start();
+            EnclosingThrottleCache.ThrottleBlock firstThrottle = throttleBlockOf(placeholderTask);
+            DispatcherMetrics.get()
+                    .record(DispatcherMetrics.Operation.PIPELINE_CLASSIFICATION, null, firstThrottle != null, start);
+            if (firstThrottle != null) {
+                if (firstThrottle.categories() != null) {
+                    return firstThrottle.categories();
+                }
+                // The block was started before its categories were recorded on it.
+                List<String> categories =
+                        ThrottleJobProperty.getCategoriesForRunByFlowNode(run).get(firstThrottle.nodeId());
+                if (categories != null) {
+                    return categories;
                 }
             }
         }
         return new ArrayList<>();
     }
 
+    /**
+     * @param task a Pipeline {@code node} block.
+     * @return the {@link ThrottleStep} most directly enclosing the block, or null if there is none or it could not be
+     *     determined in time.
+     */
     @CheckForNull
-    private ThrottleJobProperty getThrottleJobProperty(Task task) {
-        if (task instanceof Job<?, ?> p) {
-            if (task instanceof MatrixConfiguration) {
-                p = ((MatrixConfiguration) task).getParent();
+    private EnclosingThrottleCache.ThrottleBlock throttleBlockOf(@NonNull PlaceholderTask task) {
+        try (Timeout t = Timeout.limit(100, TimeUnit.MILLISECONDS)) {
+            FlowNode inner = task.getNode();
+            if (inner == null) {
+                return null;
             }
-            return p.getProperty(ThrottleJobProperty.class);
+            return EnclosingThrottleCache.get().computeIfAbsent(inner, this::firstThrottleStartNode);
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Error getting categories for pipeline {0}: {1}", new Object[] {
+                task.getDisplayName(), e
+            });
+            return null;
         }
-        return null;
     }
 
-    private int pipelinesOnNode(@NonNull Node node, @NonNull Run<?, ?> run, @NonNull List<FlowNode> flowNodes) {
-        int runCount = 0;
-        LOGGER.log(Level.FINE, "Checking for pipelines of {0} on node {1}", new Object[] {
-            run.getDisplayName(), node.getDisplayName()
-        });
+    /**
+     * @param task a task that is running on an executor, or about to.
+     * @return the names of the categories the task counts towards while it runs, possibly empty.
+     */
+    @NonNull
+    List<String> categoriesOfRunningTask(@NonNull SubTask task) {
+        if (!(task instanceof Task t)) {
+            return Collections.emptyList();
+        }
+        // Throttle-concurrent-builds requires READ permissions for all projects.
+        try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+            ThrottleJobProperty tjp = getThrottleJobProperty(t);
+            return categoryNames(shouldBeThrottled(t, tjp) ? tjp.getCategories() : categoriesForPipeline(t));
+        }
+    }
 
-        Computer computer = node.toComputer();
-        if (computer != null) { // Not all nodes are certain to become computers, like nodes with 0 executors.
-            // Don't count flyweight tasks that might not consume an actual executor, unlike with builds.
-            for (Executor e : computer.getExecutors()) {
-                runCount += pipelinesOnExecutor(run, e, flowNodes);
+    /**
+     * @param task a task that is pending.
+     * @return the names of the categories whose throttle checks the task blocks while pending, possibly empty. This
+     *     includes matrix builds even if they are not throttled themselves.
+     */
+    @NonNull
+    List<String> categoriesOfPendingTask(@NonNull Task task) {
+        // Throttle-concurrent-builds requires READ permissions for all projects.
+        try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+            ThrottleJobProperty tjp = getThrottleJobProperty(task);
+            if (tjp != null
+                    && tjp.getThrottleEnabled()
+                    && (!(task instanceof MatrixConfiguration) || tjp.isThrottleMatrixConfigurations())) {
+                return categoryNames(tjp.getCategories());
             }
+            return categoryNames(categoriesForPipeline(task));
         }
-
-        return runCount;
     }
 
-    private int pipelinesOnAllNodes(@NonNull Run<?, ?> run, @NonNull List<FlowNode> flowNodes) {
-        final Jenkins jenkins = Jenkins.get();
-        int totalRunCount = pipelinesOnNode(jenkins, run, flowNodes);
+    @NonNull
+    private static List<String> categoryNames(@CheckForNull List<String> categories) {
+        if (categories == null) {
+            return Collections.emptyList();
+        }
+        return categories.stream()
+                .filter(c -> c != null && !c.isEmpty())
+                .distinct()
+                .collect(Collectors.toUnmodifiableList());
+    }
 
-        for (Node node : jenkins.getNodes()) {
-            totalRunCount += pipelinesOnNode(node, run, flowNodes);
+    @CheckForNull
+    ThrottleJobProperty getThrottleJobProperty(Task task) {
+        if (task instanceof Job<?, ?> p) {
+            if (task instanceof MatrixConfiguration) {
+                p = ((MatrixConfiguration) task).getParent();
+            }
+            return p.getProperty(ThrottleJobProperty.class);
         }
-        return totalRunCount;
+        return null;
     }
 
     private int buildsOfProjectOnNode(Node node, Task task) {
@@ -513,116 +524,33 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
             return 0;
         }
 
-        // Note that we can't use WorkflowJob.class because it is not on this plugin's classpath.
-        if (USE_FLOW_EXECUTION_LIST
-                && task.getClass().getName().equals("org.jenkinsci.plugins.workflow.job.WorkflowJob")) {
+        if (USE_FLOW_EXECUTION_LIST && isPipelineJob(task)) {
             return buildsOfPipelineJob(task);
         } else {
             return buildsOfProjectOnAllNodesImpl(task);
         }
     }
 
-    private int buildsOfPipelineJob(Task task) {
-        int runCount = 0;
-
-        for (FlowExecution flowExecution : FlowExecutionList.get()) {
-            try {
-                final Queue.Executable executable = flowExecution.getOwner().getExecutable();
-                if (executable != null && task.equals(executable.getParent())) {
-                    runCount++;
-                }
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Error getting number of builds for pipeline {0}: {1}", new Object[] {
-                    task.getDisplayName(), e
-                });
-            }
-        }
+    static boolean isPipelineJob(Task task) {
+        // Note that we can't use WorkflowJob.class because it is not on this plugin's classpath.
+        return task.getClass().getName().equals("org.jenkinsci.plugins.workflow.job.WorkflowJob");
+    }
 
-        return runCount;
+    private int buildsOfPipelineJob(Task task) {
+        return RunningPipelinesIndex.get().count(task);
     }
 
     private int buildsOfProjectOnNodeImpl(Node node, Task task) {
-        int runCount = 0;
         LOGGER.log(Level.FINE, "Checking for builds of {0} on node {1}", new Object[] {
             task.getName(), node.getDisplayName()
         });
 
-        // I think this'll be more reliable than job.getBuilds(), which seemed to not always get
-        // a build right after it was launched, for some reason.
-        Computer computer = node.toComputer();
-        if (computer != null) { // Not all nodes are certain to become computers, like nodes with 0 executors.
-            // Count flyweight tasks that might not consume an actual executor.
-            for (Executor e : computer.getOneOffExecutors()) {
-                runCount += buildsOnExecutor(task, e);
-            }
-
-            for (Executor e : computer.getExecutors()) {
-                runCount += buildsOnExecutor(task, e);
-            }
-        }
-
-        return runCount;
+        // Executors of the node, including flyweight tasks that might not consume an actual executor.
+        return RunningBuildsIndex.get().countOnNode(node, task);
     }
 
     private int buildsOfProjectOnAllNodesImpl(Task task) {
-        final Jenkins jenkins = Jenkins.get();
-        int totalRunCount = buildsOfProjectOnNode(jenkins, task);
-
-        for (Node node : jenkins.getNodes()) {
-            totalRunCount += buildsOfProjectOnNodeImpl(node, task);
-        }
-        return totalRunCount;
-    }
-
-    private int buildsOnExecutor(Task task, Executor exec) {
-        int runCount = 0;
-        final Queue.Executable currentExecutable = exec.getCurrentExecutable();
-        if (currentExecutable != null && task.equals(currentExecutable.getParent())) {
-            runCount++;
-        }
-
-        return runCount;
-    }
-
-    /**
-     * Get the count of currently executing {@link PlaceholderTask}s on a given {@link Executor} for a given {@link Run}
-     * and list of {@link FlowNode}s in that run that have been throttled.
-     *
-     * @param run The {@link Run} we care about.
-     * @param exec The {@link Executor} we're checking on.
-     * @param flowNodes The list of {@link FlowNode}s associated with that run that have been throttled with a particular
-     *                  category.
-     * @return 1 if there's something currently executing on that executor and it's of that run and one of the provided
-     * flow nodes, 0 otherwise.
-     */
-    private int pipelinesOnExecutor(@NonNull Run<?, ?> run, @NonNull Executor exec, @NonNull List<FlowNode> flowNodes) {
-        final Queue.Executable currentExecutable = exec.getCurrentExecutable();
-        if (currentExecutable != null) {
-            SubTask parent = currentExecutable.getParent();
-            if (parent instanceof Task) {
-                Queue.Executable ownerExecutable = parent.getOwnerExecutable();
-                if (ownerExecutable instanceof Run<?, ?> run2 && run.equals(run2)) {
-                    if (isTaskThrottledPipeline((Task) parent, flowNodes)) {
-                        return 1;
-                    }
-                }
-            }
-        }
-
-        return 0;
-    }
-
-    private boolean isTaskThrottledPipeline(Task origTask, List<FlowNode> flowNodes) {
-        if (origTask instanceof PlaceholderTask task) { // TODO as in categoriesForPipeline
-            try {
-                FlowNode firstThrottle = firstThrottleStartNode(task.getNode());
-                return firstThrottle != null && flowNodes.contains(firstThrottle);
-            } catch (IOException | InterruptedException e) {
-                // TODO: do something?
-            }
-        }
-
-        return false;
+        return RunningBuildsIndex.get().countOnAllNodes(task);
     }
 
     /**
@@ -632,7 +560,7 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
      * @return The most immediate enclosing {@link FlowNode} of the inner one that is associated with {@link ThrottleStep}. May be null.
      */
     @CheckForNull
-    private FlowNode firstThrottleStartNode(@CheckForNull FlowNode inner) {
+    FlowNode firstThrottleStartNode(@CheckForNull FlowNode inner) {
         if (inner != null) {
             LinearBlockHoppingScanner scanner = new LinearBlockHoppingScanner();
             scanner.setup(inner);
@@ -665,31 +593,27 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
     private int getMaxConcurrentPerNodeBasedOnMatchingLabels(
             Node node, ThrottleJobProperty.ThrottleCategory category, int maxConcurrentPerNode) {
         List<ThrottleJobProperty.NodeLabeledPair> nodeLabeledPairs = category.getNodeLabeledPairs();
-        int maxConcurrentPerNodeLabeledIfMatch = maxConcurrentPerNode;
-        boolean nodeLabelsMatch = false;
-        Set<LabelAtom> nodeLabels = node.getAssignedLabels();
+        if (nodeLabeledPairs.isEmpty()) {
+            return maxConcurrentPerNode;
+        }
+        Set<String> nodeLabels = new HashSet<>();
+        for (LabelAtom aNodeLabel : node.getAssignedLabels()) {
+            nodeLabels.add(aNodeLabel.getDisplayName());
+        }
 
         for (ThrottleJobProperty.NodeLabeledPair nodeLabeledPair : nodeLabeledPairs) {
             String throttledNodeLabel = nodeLabeledPair.getThrottledNodeLabel();
-            if (!nodeLabelsMatch && !throttledNodeLabel.isEmpty()) {
-                for (LabelAtom aNodeLabel : nodeLabels) {
-                    String nodeLabel = aNodeLabel.getDisplayName();
-                    if (nodeLabel.equals(throttledNodeLabel)) {
-                        maxConcurrentPerNodeLabeledIfMatch = nodeLabeledPair.getMaxConcurrentPerNodeLabeled();
-                        LOGGER.log(
-                                Level.FINE,
-                                "node labels match; => maxConcurrentPerNode'' = {0}",
-                                maxConcurrentPerNodeLabeledIfMatch);
-                        nodeLabelsMatch = true;
-                        break;
-                    }
-                }
+            if (!throttledNodeLabel.isEmpty() && nodeLabels.contains(throttledNodeLabel)) {
+                int maxConcurrentPerNodeLabeledIfMatch = nodeLabeledPair.getMaxConcurrentPerNodeLabeled();
+                LOGGER.log(
+                        Level.FINE,
+                        "node labels match; => maxConcurrentPerNode'' = {0}",
+                        maxConcurrentPerNodeLabeledIfMatch);
+                return maxConcurrentPerNodeLabeledIfMatch;
             }
         }
-        if (!nodeLabelsMatch) {
-            LOGGER.fine("node labels mismatch");
-        }
-        return maxConcurrentPerNodeLabeledIfMatch;
+        LOGGER.fine("node labels mismatch");
+        return maxConcurrentPerNode;
     }
 
     private static final Logger LOGGER = Logger.getLogger(ThrottleQueueTaskDispatcher.class.getName());
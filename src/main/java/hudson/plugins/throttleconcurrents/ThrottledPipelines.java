@@ -0,0 +1,185 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.util.CopyOnWriteMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The {@code throttle} blocks of Pipeline builds currently running in each category.
+ *
+ * <p>The state is striped per category: all changes to a category are made while holding the lock of that category's
+ * bin in a {@link ConcurrentHashMap}, so blocks of different categories never wait for each other, adding or removing a
+ * flow node costs O(1), and readers never lock at all. The same blocks are also indexed by run, to find the categories
+ * of a flow node of a given run; that index is updated while still holding the lock of the category, so a reader may
+ * briefly see one without the other, but changes to a category reach both in the same order. So do they reach the
+ * {@link ThrottledPipelinesJournal}, if any, so that replaying it rebuilds the same state.
+ */
+final class ThrottledPipelines {
+
+    /** Map from category names, to run IDs, to the IDs of the flow nodes throttled in that category. */
+    private final ConcurrentMap<String, ConcurrentMap<String, Set<String>>> byCategory = new ConcurrentHashMap<>();
+
+    /** Map from run IDs, to flow node IDs, to the names of the categories they are throttled in. */
+    private final ConcurrentMap<String, ConcurrentMap<String, Set<String>>> byRun = new ConcurrentHashMap<>();
+
+    @CheckForNull
+    private volatile ThrottledPipelinesJournal journal;
+
+    /**
+     * @param persisted the state as persisted by {@link #toPersistedForm}.
+     * @return the same state.
+     */
+    @NonNull
+    static ThrottledPipelines of(@CheckForNull Map<String, Map<String, List<String>>> persisted) {
+        ThrottledPipelines pipelines = new ThrottledPipelines();
+        if (persisted != null) {
+            for (Map.Entry<String, Map<String, List<String>>> category : persisted.entrySet()) {
+                for (Map.Entry<String, List<String>> run : category.getValue().entrySet()) {
+                    for (String flowNodeId : run.getValue()) {
+                        pipelines.add(run.getKey(), flowNodeId, category.getKey());
+                    }
+                }
+            }
+        }
+        return pipelines;
+    }
+
+    /** @param journal where to record the changes from now on, or null to stop recording them. */
+    void setJournal(@CheckForNull ThrottledPipelinesJournal journal) {
+        this.journal = journal;
+    }
+
+    void add(@NonNull String runId, @NonNull String flowNodeId, @NonNull String category) {
+        byCategory.compute(category, (k, runs) -> {
+            if (runs == null) {
+                runs = new ConcurrentHashMap<>();
+            }
+            runs.computeIfAbsent(runId, r -> ConcurrentHashMap.newKeySet()).add(flowNodeId);
+            byRun.compute(runId, (r, flowNodes) -> {
+                if (flowNodes == null) {
+                    flowNodes = new ConcurrentHashMap<>();
+                }
+                flowNodes.computeIfAbsent(flowNodeId, n -> ConcurrentHashMap.newKeySet()).add(category);
+                return flowNodes;
+            });
+            ThrottledPipelinesJournal journal = this.journal;
+            if (journal != null) {
+                journal.added(runId, flowNodeId, category);
+            }
+            return runs;
+        });
+    }
+
+    void remove(@NonNull String runId, @NonNull String flowNodeId, @NonNull String category) {
+        byCategory.computeIfPresent(category, (k, runs) -> {
+            runs.computeIfPresent(runId, (r, flowNodes) -> {
+                flowNodes.remove(flowNodeId);
+                return flowNodes.isEmpty() ? null : flowNodes;
+            });
+            byRun.computeIfPresent(runId, (r, flowNodes) -> {
+                flowNodes.computeIfPresent(flowNodeId, (n, categories) -> {
+                    categories.remove(category);
+                    return categories.isEmpty() ? null : categories;
+                });
+                return flowNodes.isEmpty() ? null : flowNodes;
+            });
+            ThrottledPipelinesJournal journal = this.journal;
+            if (journal != null) {
+                journal.removed(runId, flowNodeId, category);
+            }
+            return runs.isEmpty() ? null : runs;
+        });
+    }
+
+    void removeRun(@NonNull String runId, @NonNull String category) {
+        byCategory.computeIfPresent(category, (k, runs) -> {
+            runs.remove(runId);
+            byRun.computeIfPresent(runId, (r, flowNodes) -> {
+                flowNodes.replaceAll((n, categories) -> {
+                    categories.remove(category);
+                    return categories;
+                });
+                flowNodes.values().removeIf(Set::isEmpty);
+                return flowNodes.isEmpty() ? null : flowNodes;
+            });
+            ThrottledPipelinesJournal journal = this.journal;
+            if (journal != null) {
+                journal.removedRun(runId, category);
+            }
+            return runs.isEmpty() ? null : runs;
+        });
+    }
+
+    /**
+     * @param runId the {@link hudson.model.Run#getExternalizableId} of a run.
+     * @return whether any flow node of the run is throttled.
+     */
+    boolean hasRun(@NonNull String runId) {
+        return byRun.containsKey(runId);
+    }
+
+    /** @return a copy of the names of the categories with throttled blocks. */
+    @NonNull
+    Set<String> categories() {
+        return Set.copyOf(byCategory.keySet());
+    }
+
+    /**
+     * @param category the category name.
+     * @return a copy of the map from run IDs to the IDs of the flow nodes throttled in the given category.
+     */
+    @NonNull
+    Map<String, List<String>> forCategory(@NonNull String category) {
+        Map<String, List<String>> result = new CopyOnWriteMap.Tree<>();
+        Map<String, Set<String>> runs = byCategory.get(category);
+        if (runs != null) {
+            for (Map.Entry<String, Set<String>> run : runs.entrySet()) {
+                result.put(run.getKey(), new CopyOnWriteArrayList<>(run.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param runId the {@link hudson.model.Run#getExternalizableId} of a run.
+     * @return a copy of the map from the IDs of the throttled flow nodes of the run to their category names.
+     */
+    @NonNull
+    Map<String, List<String>> forRun(@NonNull String runId) {
+        Map<String, List<String>> result = new HashMap<>();
+        Map<String, Set<String>> flowNodes = byRun.get(runId);
+        if (flowNodes != null) {
+            for (Map.Entry<String, Set<String>> flowNode : flowNodes.entrySet()) {
+                result.put(flowNode.getKey(), new ArrayList<>(flowNode.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /** @return a copy of the whole state, in the form it has always been persisted in. */
+    @NonNull
+    Map<String, Map<String, List<String>>> toPersistedForm() {
+        Map<String, Map<String, List<String>>> result = new TreeMap<>();
+        for (String category : byCategory.keySet()) {
+            Map<String, List<String>> runs = forCategory(category);
+            if (!runs.isEmpty()) {
+                result.put(category, runs);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return byCategory.toString();
+    }
+}
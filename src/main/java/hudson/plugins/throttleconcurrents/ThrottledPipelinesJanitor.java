@@ -0,0 +1,121 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+
+/**
+ * Periodically removes the throttled Pipeline blocks that are no longer running from {@link ThrottledPipelines}.
+ *
+ * <p>{@code throttle} steps remove their own entries when their body completes, so anything found here is drift: a
+ * build that is gone or no longer building, e.g. because it was killed or could not be resumed after a restart, or a
+ * flow node that no longer exists. This may load builds from disk, so it is done in the background rather than by
+ * {@link ThrottleQueueTaskDispatcher}.
+ */
+@Extension
+public class ThrottledPipelinesJanitor extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottledPipelinesJanitor.class.getName());
+
+    public ThrottledPipelinesJanitor() {
+        super("Throttled pipelines janitor");
+    }
+
+    @NonNull
+    public static ThrottledPipelinesJanitor get() {
+        return ExtensionList.lookupSingleton(ThrottledPipelinesJanitor.class);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(5);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Drift drift = clean();
+        if (drift.runs() > 0 || drift.flowNodes() > 0) {
+            listener.getLogger().println(drift);
+        }
+    }
+
+    /**
+     * Compare the tracked blocks with the builds actually running, and remove those that are not running any more.
+     *
+     * @return what had to be removed.
+     */
+    @NonNull
+    Drift clean() {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        int runs = 0;
+        int flowNodes = 0;
+        // Categories deleted or renamed since their blocks were recorded included.
+        for (String categoryName : descriptor.getThrottledPipelineCategories()) {
+            for (Map.Entry<String, List<String>> pipeline :
+                    descriptor.getTrackedPipelinesForCategory(categoryName).entrySet()) {
+                String runId = pipeline.getKey();
+                FlowExecution execution = runningExecution(runId);
+                if (execution == null) {
+                    descriptor.forgetThrottledPipelineRun(runId, categoryName);
+                    runs++;
+                    continue;
+                }
+                for (String flowNodeId : pipeline.getValue()) {
+                    try {
+                        if (execution.getNode(flowNodeId) == null) {
+                            descriptor.forgetThrottledPipeline(runId, flowNodeId, categoryName);
+                            flowNodes++;
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Could not look up flow node " + flowNodeId + " of " + runId, e);
+                    }
+                }
+            }
+        }
+        Drift drift = new Drift(runs, flowNodes);
+        if (runs > 0 || flowNodes > 0) {
+            LOGGER.log(Level.INFO, "{0}", drift);
+        }
+        return drift;
+    }
+
+    /**
+     * @param runId the {@link Run#getExternalizableId} of a Pipeline build.
+     * @return the flow execution of the build, or null if the build does not exist or is no longer building.
+     */
+    @CheckForNull
+    private static FlowExecution runningExecution(@NonNull String runId) {
+        Run<?, ?> run = Run.fromExternalizableId(runId);
+        if (!(run instanceof FlowExecutionOwner.Executable executable) || !run.isBuilding()) {
+            return null;
+        }
+        FlowExecutionOwner owner = executable.asFlowExecutionOwner();
+        return owner != null ? owner.getOrNull() : null;
+    }
+
+    /**
+     * What {@link #clean} removed.
+     *
+     * @param runs the number of builds whose blocks were removed from a category, as they are no longer running.
+     * @param flowNodes the number of blocks removed from a category, as their flow node no longer exists.
+     */
+    record Drift(int runs, int flowNodes) {
+        @Override
+        public String toString() {
+            return "Removed " + runs + " builds no longer running and " + flowNodes
+                    + " missing flow nodes from the throttled pipelines";
+        }
+    }
+}
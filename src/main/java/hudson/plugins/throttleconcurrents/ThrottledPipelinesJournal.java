@@ -0,0 +1,207 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * Append-only log of the changes made to {@link ThrottledPipelines}, so that they survive a crash of the controller
+ * without rewriting the whole global configuration on every {@code throttle} step.
+ *
+ * <p>A journal always starts with a snapshot of the whole state, followed by one record per change. Records are
+ * buffered and written to disk in batches, at most {@link #FLUSH_DELAY_MS} after the first one of a batch. Once enough
+ * records have accumulated, the journal is compacted by writing a fresh snapshot to a new file and moving that over the
+ * old one. A record cut short by a crash simply ends the replay.
+ */
+final class ThrottledPipelinesJournal {
+
+    private static final int MAGIC = 0x54435042; // TCPB
+    private static final byte ADD = 'A';
+    private static final byte REMOVE = 'R';
+    private static final byte REMOVE_RUN = 'X';
+
+    static final long FLUSH_DELAY_MS =
+            Long.getLong(ThrottledPipelinesJournal.class.getName() + ".FLUSH_DELAY_MS", 1000);
+    static final int COMPACT_THRESHOLD =
+            Integer.getInteger(ThrottledPipelinesJournal.class.getName() + ".COMPACT_THRESHOLD", 10_000);
+
+    private final File file;
+    private final ThrottledPipelines state;
+
+    @CheckForNull
+    private FileOutputStream fileOut;
+
+    @CheckForNull
+    private DataOutputStream out;
+
+    private int recordsSinceCompaction;
+    private boolean flushScheduled;
+
+    /**
+     * Write a snapshot of the given state to the given file, and record its later changes there.
+     *
+     * @param file the journal file.
+     * @param state the state to record the changes of.
+     * @throws IOException if the snapshot could not be written.
+     */
+    ThrottledPipelinesJournal(@NonNull File file, @NonNull ThrottledPipelines state) throws IOException {
+        this.file = file;
+        this.state = state;
+        synchronized (this) {
+            compact();
+        }
+    }
+
+    /**
+     * @param file the journal file.
+     * @return the state recorded in the given journal, or null if there is no usable journal.
+     */
+    @CheckForNull
+    static ThrottledPipelines replay(@NonNull File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        ThrottledPipelines state = new ThrottledPipelines();
+        int records = 0;
+        try (InputStream is = new FileInputStream(file);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(is))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.log(Level.WARNING, "Ignoring {0}, which is not a throttled pipelines journal", file);
+                return null;
+            }
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                switch (type) {
+                    case ADD -> state.add(in.readUTF(), in.readUTF(), in.readUTF());
+                    case REMOVE -> state.remove(in.readUTF(), in.readUTF(), in.readUTF());
+                    case REMOVE_RUN -> state.removeRun(in.readUTF(), in.readUTF());
+                    default -> throw new IOException("Unknown record type " + type);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            LOGGER.log(Level.FINE, "{0} ends with an incomplete record, ignoring it", file);
+        } catch (IOException e) {
+            LOGGER.log(
+                    Level.WARNING, "Failed to fully replay " + file + ", using the first " + records + " records", e);
+        }
+        return state;
+    }
+
+    void added(@NonNull String runId, @NonNull String flowNodeId, @NonNull String category) {
+        append(ADD, runId, flowNodeId, category);
+    }
+
+    void removed(@NonNull String runId, @NonNull String flowNodeId, @NonNull String category) {
+        append(REMOVE, runId, flowNodeId, category);
+    }
+
+    void removedRun(@NonNull String runId, @NonNull String category) {
+        append(REMOVE_RUN, runId, category);
+    }
+
+    private synchronized void append(byte type, String... fields) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(type);
+            for (String field : fields) {
+                out.writeUTF(field);
+            }
+            recordsSinceCompaction++;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to append to " + file, e);
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            Timer.get().schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Write the buffered records to disk, compacting the journal if it has grown large enough. */
+    synchronized void flush() {
+        flushScheduled = false;
+        if (out == null) {
+            return;
+        }
+        try {
+            if (recordsSinceCompaction >= COMPACT_THRESHOLD) {
+                compact();
+            } else {
+                out.flush();
+                fileOut.getChannel().force(false);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + file, e);
+        }
+    }
+
+    synchronized void close() {
+        flush();
+        closeStreams();
+    }
+
+    /**
+     * Replace the journal with a new one starting with a snapshot of the current state. Changes made concurrently
+     * either are in the snapshot or are appended after it, and replaying a change twice is harmless.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                DataOutputStream snapshot = new DataOutputStream(new BufferedOutputStream(fos))) {
+            snapshot.writeInt(MAGIC);
+            for (Map.Entry<String, Map<String, List<String>>> category : state.toPersistedForm().entrySet()) {
+                for (Map.Entry<String, List<String>> run : category.getValue().entrySet()) {
+                    for (String flowNodeId : run.getValue()) {
+                        snapshot.writeByte(ADD);
+                        snapshot.writeUTF(run.getKey());
+                        snapshot.writeUTF(flowNodeId);
+                        snapshot.writeUTF(category.getKey());
+                    }
+                }
+            }
+            snapshot.flush();
+            fos.getChannel().force(false);
+        }
+        closeStreams();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        recordsSinceCompaction = 0;
+    }
+
+    private void closeStreams() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close " + file, e);
+            }
+            out = null;
+            fileOut = null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottledPipelinesJournal.class.getName());
+}
@@ -0,0 +1,24 @@
+package hudson.plugins.throttleconcurrents.pipeline;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.InvisibleAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records on the start node of a {@code throttle} step the categories its body is throttled in, so that the
+ * categories of a {@code node} block inside it can be read from the enclosing block directly.
+ */
+public class ThrottleCategoriesAction extends InvisibleAction {
+    private final List<String> categories;
+
+    public ThrottleCategoriesAction(@NonNull List<String> categories) {
+        this.categories = new ArrayList<>(categories);
+    }
+
+    @NonNull
+    public List<String> getCategories() {
+        return Collections.unmodifiableList(categories);
+    }
+}
@@ -77,9 +77,11 @@ public class ThrottleStepExecution extends StepExecution {
         if (r != null && flowNode != null) {
             runId = r.getExternalizableId();
             flowNodeId = flowNode.getId();
-            for (String category : validateCategories(descriptor, listener)) {
+            List<String> categories = validateCategories(descriptor, listener);
+            for (String category : categories) {
                 descriptor.addThrottledPipelineForCategory(runId, flowNodeId, category, listener);
             }
+            flowNode.addAction(new ThrottleCategoriesAction(categories));
         }
 
         getContext()
@@ -0,0 +1,38 @@
+package hudson.plugins.throttleconcurrents;
+
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.BenchmarkFinder;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this plugin, i.e. the classes annotated with {@link jenkins.benchmark.jmh.JmhBenchmark}.
+ * Not a regular test: run it with {@code mvn -Dbenchmark test}.
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .warmupIterations(2)
+                .measurementIterations(5)
+                .forks(1)
+                .threads(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-report.json");
+
+        BenchmarkFinder finder = new BenchmarkFinder(getClass());
+        finder.findBenchmarks(options);
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,79 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Set;
+import org.junit.Test;
+
+public class CategoryOccupancyTableTest {
+
+    @Test
+    public void countsArePerNodeAndCategory() {
+        CategoryOccupancyTable table = new CategoryOccupancyTable();
+        table.increment("agent1", "alpha");
+        table.increment("agent1", "alpha");
+        table.increment("agent1", "beta");
+        table.increment("agent2", "alpha");
+        table.increment("", "gamma");
+
+        assertEquals(2, table.get("agent1", "alpha"));
+        assertEquals(1, table.get("agent1", "beta"));
+        assertEquals(0, table.get("agent1", "gamma"));
+        assertEquals(1, table.get("agent2", "alpha"));
+        assertEquals(0, table.get("agent2", "beta"));
+        assertEquals(1, table.get("", "gamma"));
+        assertEquals(0, table.get("agent3", "alpha"));
+        assertEquals(0, table.get("agent1", "delta"));
+
+        table.decrement("agent1", "alpha");
+        assertEquals(1, table.get("agent1", "alpha"));
+        assertEquals(1, table.get("agent2", "alpha"));
+    }
+
+    @Test
+    public void releasedNodeIndexIsReusedFromZero() {
+        CategoryOccupancyTable table = new CategoryOccupancyTable();
+        table.increment("agent1", "alpha");
+        table.increment("agent1", "beta");
+        table.decrement("agent1", "alpha");
+        table.decrement("agent1", "beta");
+        assertEquals(0, table.get("agent1", "alpha"));
+
+        table.increment("agent2", "beta");
+        assertEquals(0, table.get("agent2", "alpha"));
+        assertEquals(1, table.get("agent2", "beta"));
+        assertEquals(0, table.get("agent1", "beta"));
+    }
+
+    @Test
+    public void decrementNeverGoesNegative() {
+        CategoryOccupancyTable table = new CategoryOccupancyTable();
+        table.decrement("agent1", "alpha");
+        table.increment("agent1", "alpha");
+        table.decrement("agent1", "alpha");
+        table.decrement("agent1", "alpha");
+        assertEquals(0, table.get("agent1", "alpha"));
+    }
+
+    @Test
+    public void removedCategoryIndexIsReleasedOnceIdle() {
+        CategoryOccupancyTable table = new CategoryOccupancyTable();
+        table.increment("agent1", "alpha");
+        table.increment("agent2", "beta");
+        table.retainCategories(Set.of());
+        assertEquals(2, table.categoryCount());
+
+        table.decrement("agent1", "alpha");
+        table.retainCategories(Set.of("alpha"));
+        assertEquals(2, table.categoryCount());
+        table.retainCategories(Set.of());
+        assertEquals(1, table.categoryCount());
+        assertEquals(1, table.get("agent2", "beta"));
+
+        table.increment("agent2", "gamma");
+        assertEquals(2, table.categoryCount());
+        assertEquals(1, table.get("agent2", "gamma"));
+        assertEquals(0, table.get("agent2", "alpha"));
+        assertEquals(1, table.get("agent2", "beta"));
+    }
+}
@@ -0,0 +1,61 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+
+public class DispatcherMetricsTest {
+
+    @After
+    public void reset() {
+        DispatcherMetrics.get().reset();
+    }
+
+    @Test
+    public void recordsByCategoryAndOutcome() {
+        DispatcherMetrics metrics = DispatcherMetrics.get();
+        metrics.reset();
+        for (int i = 0; i < 10; i++) {
+            metrics.record(DispatcherMetrics.Operation.CATEGORY_ON_NODE, "alpha", false, DispatcherMetrics.start());
+        }
+        metrics.record(DispatcherMetrics.Operation.CATEGORY_ON_NODE, "alpha", true, DispatcherMetrics.start());
+        metrics.record(DispatcherMetrics.Operation.CATEGORY_ON_NODE, "beta", true, DispatcherMetrics.start());
+        metrics.record(DispatcherMetrics.Operation.CAN_TAKE, null, false, DispatcherMetrics.start());
+
+        Map<String, Map<String, Map<String, DispatcherMetrics.Snapshot>>> snapshot = metrics.snapshot();
+        Map<String, Map<String, DispatcherMetrics.Snapshot>> onNode = snapshot.get("categoryOnNode");
+        assertEquals(10, onNode.get("alpha").get("allowed").count());
+        assertEquals(1, onNode.get("alpha").get("blocked").count());
+        assertEquals(0, onNode.get("beta").get("allowed").count());
+        assertEquals(1, onNode.get("beta").get("blocked").count());
+        assertEquals(1, snapshot.get("canTake").get("").get("allowed").count());
+        assertTrue(snapshot.get("canRun").isEmpty());
+
+        DispatcherMetrics.Snapshot total = metrics.total(DispatcherMetrics.Operation.CATEGORY_ON_NODE);
+        assertEquals(12, total.count());
+        assertTrue(total.p50Nanos() <= total.p99Nanos());
+        assertTrue(total.maxNanos() <= total.totalNanos());
+        // percentiles are upper bounds of power-of-two buckets
+        assertTrue(total.p99Nanos() > total.maxNanos() / 2);
+    }
+
+    @Test
+    public void recordsNothingWhenDisabled() {
+        DispatcherMetrics metrics = DispatcherMetrics.get();
+        metrics.reset();
+        DispatcherMetrics.DISABLED = true;
+        try {
+            long start = DispatcherMetrics.start();
+            assertEquals(DispatcherMetrics.NOT_TIMED, start);
+            DispatcherMetrics.DISABLED = false;
+            // Enabled again during the call, which was not timed.
+            metrics.record(DispatcherMetrics.Operation.CAN_RUN, null, false, start);
+            assertEquals(0, metrics.total(DispatcherMetrics.Operation.CAN_RUN).count());
+        } finally {
+            DispatcherMetrics.DISABLED = false;
+        }
+    }
+}
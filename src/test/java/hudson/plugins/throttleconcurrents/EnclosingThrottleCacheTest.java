@@ -0,0 +1,89 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/** Tests that {@link EnclosingThrottleCache} only keeps what it can trust, and only while the build runs. */
+public class EnclosingThrottleCacheTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void negativeResultOfInterruptedWalkIsNotCached() throws Exception {
+        EnclosingThrottleCache cache = EnclosingThrottleCache.get();
+        WorkflowJob p = j.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("semaphore 'wait'", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+        FlowNode inner = b.getExecution().getCurrentHeads().get(0);
+
+        AtomicInteger walks = new AtomicInteger();
+        Function<FlowNode, FlowNode> interrupted = node -> {
+            walks.incrementAndGet();
+            // As when the timeout of the dispatcher cuts the walk short.
+            Thread.currentThread().interrupt();
+            return null;
+        };
+        try {
+            assertNull(cache.computeIfAbsent(inner, interrupted));
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(1, walks.get());
+
+        Function<FlowNode, FlowNode> complete = node -> {
+            walks.incrementAndGet();
+            return ThrottleQueueTaskDispatcher.get().firstThrottleStartNode(node);
+        };
+        assertNull(cache.computeIfAbsent(inner, complete));
+        assertEquals(2, walks.get());
+        assertNull(cache.computeIfAbsent(inner, complete));
+        assertEquals(2, walks.get());
+
+        SemaphoreStep.success("wait/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+    }
+
+    @Test
+    public void entriesAreDroppedWhenTheBuildCompletes() throws Exception {
+        String category = TestUtil.ONE_PER_NODE.getCategoryName();
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE);
+        EnclosingThrottleCache cache = EnclosingThrottleCache.get();
+        WorkflowJob p = j.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("throttle(['" + category + "']) { semaphore 'wait' }", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+        FlowNode inner = b.getExecution().getCurrentHeads().get(0);
+
+        AtomicInteger walks = new AtomicInteger();
+        Function<FlowNode, FlowNode> finder = node -> {
+            walks.incrementAndGet();
+            return ThrottleQueueTaskDispatcher.get().firstThrottleStartNode(node);
+        };
+        EnclosingThrottleCache.ThrottleBlock block = cache.computeIfAbsent(inner, finder);
+        assertNotNull(block);
+        assertEquals(Collections.singletonList(category), block.categories());
+        assertEquals(block, cache.computeIfAbsent(inner, finder));
+        assertEquals(1, walks.get());
+
+        SemaphoreStep.success("wait/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+
+        assertEquals(block, cache.computeIfAbsent(inner, finder));
+        assertEquals(2, walks.get());
+    }
+}
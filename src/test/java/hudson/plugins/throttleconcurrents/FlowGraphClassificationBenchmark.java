@@ -0,0 +1,150 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.Queue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution.PlaceholderTask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how long the dispatcher takes to find the {@code throttle} step enclosing a Pipeline {@code node} block,
+ * on graphs of various shapes.
+ *
+ * <p>The {@code node} blocks ask for a label no agent has, so that they all stay in the queue as {@link PlaceholderTask}s
+ * with the whole flow graph built.
+ */
+@JmhBenchmark
+public class FlowGraphClassificationBenchmark {
+
+    public static class GraphState extends JmhBenchmarkState {
+
+        static final int DEPTH = 50;
+        static final int WIDTH = 1000;
+        static final int NESTED_WIDTH = 100;
+
+        /**
+         * {@code deep}: one {@code node} block in {@link #DEPTH} nested stages in a {@code throttle} step.
+         * {@code wide}: a {@code parallel} step of {@link #WIDTH} branches with a {@code node} block each, in a
+         * {@code throttle} step. {@code nested}: {@code throttle} steps at three levels, around and inside a
+         * {@code parallel} step of {@link #NESTED_WIDTH} branches.
+         */
+        @Param({"deep", "wide", "nested"})
+        public String shape;
+
+        final List<PlaceholderTask> tasks = new ArrayList<>();
+        final List<FlowNode> nodes = new ArrayList<>();
+        WorkflowRun run;
+
+        private int next;
+
+        @Override
+        public void setup() throws Exception {
+            Jenkins jenkins = getJenkins();
+            TestUtil.setupCategories(
+                    new ThrottleJobProperty.ThrottleCategory("outer", 0, 0, null),
+                    new ThrottleJobProperty.ThrottleCategory("middle", 0, 0, null),
+                    new ThrottleJobProperty.ThrottleCategory("inner", 0, 0, null));
+
+            WorkflowJob job = jenkins.createProject(WorkflowJob.class, "graph");
+            job.setDefinition(new CpsFlowDefinition(script(), true));
+            run = job.scheduleBuild2(0).waitForStart();
+
+            int expected = shape.equals("deep") ? 1 : shape.equals("wide") ? WIDTH : NESTED_WIDTH;
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+            while (tasks.size() < expected) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("Only " + tasks.size() + " of " + expected + " tasks queued");
+                }
+                Thread.sleep(100);
+                tasks.clear();
+                for (Queue.Item item : Queue.getInstance().getItems()) {
+                    if (item.task instanceof PlaceholderTask placeholder) {
+                        tasks.add(placeholder);
+                    }
+                }
+            }
+            for (PlaceholderTask task : tasks) {
+                nodes.add(task.getNode());
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            run.doKill();
+        }
+
+        private String script() {
+            StringBuilder script = new StringBuilder();
+            switch (shape) {
+                case "deep" -> {
+                    script.append("throttle(['outer']) {\n");
+                    for (int i = 0; i < DEPTH; i++) {
+                        script.append("stage('s").append(i).append("') {\n");
+                    }
+                    script.append("node('nowhere') { echo 'unreachable' }\n");
+                    script.append("}\n".repeat(DEPTH));
+                    script.append("}\n");
+                }
+                case "wide" -> script.append("throttle(['outer']) {\n")
+                        .append("def branches = [:]\n")
+                        .append("for (int i = 0; i < ")
+                        .append(WIDTH)
+                        .append("; i++) {\n")
+                        .append("branches['b' + i] = { node('nowhere') { echo 'unreachable' } }\n")
+                        .append("}\n")
+                        .append("parallel branches\n")
+                        .append("}\n");
+                case "nested" -> script.append("throttle(['outer']) {\n")
+                        .append("stage('a') {\n")
+                        .append("throttle(['middle']) {\n")
+                        .append("def branches = [:]\n")
+                        .append("for (int i = 0; i < ")
+                        .append(NESTED_WIDTH)
+                        .append("; i++) {\n")
+                        .append("branches['b' + i] = {\n")
+                        .append("stage('b') { throttle(['inner']) { node('nowhere') { echo 'unreachable' } } }\n")
+                        .append("}\n")
+                        .append("}\n")
+                        .append("parallel branches\n")
+                        .append("}\n")
+                        .append("}\n")
+                        .append("}\n");
+                default -> throw new IllegalArgumentException(shape);
+            }
+            return script.toString();
+        }
+
+        int next() {
+            next = (next + 1) % tasks.size();
+            return next;
+        }
+    }
+
+    /** The whole classification of a queued {@code node} block, as done by the dispatcher, cached per node. */
+    @Benchmark
+    public void classifyPlaceholderTask(GraphState state, Blackhole blackhole) {
+        blackhole.consume(ThrottleQueueTaskDispatcher.get().categoriesOfPendingTask(state.tasks.get(state.next())));
+    }
+
+    /** The walk back through the flow graph to the enclosing {@code throttle} step, as done on a cache miss. */
+    @Benchmark
+    public void firstThrottleStartNode(GraphState state, Blackhole blackhole) {
+        blackhole.consume(ThrottleQueueTaskDispatcher.get().firstThrottleStartNode(state.nodes.get(state.next())));
+    }
+
+    /** The lookup of the categories recorded for the throttled flow nodes of a run. */
+    @Benchmark
+    public void categoriesForRunByFlowNode(GraphState state, Blackhole blackhole) {
+        blackhole.consume(ThrottleJobProperty.getCategoriesForRunByFlowNode(state.run));
+    }
+}
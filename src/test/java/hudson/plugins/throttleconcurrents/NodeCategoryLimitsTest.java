@@ -0,0 +1,73 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/** Tests that {@link NodeCategoryLimits} caches limits until the labels of a node may have changed. */
+public class NodeCategoryLimitsTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder agentTmp = new TemporaryFolder();
+
+    private List<Node> agents = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtil.tearDown(j, agents);
+        agents = new ArrayList<>();
+    }
+
+    @Test
+    public void limitsFollowNodeLabels() throws Exception {
+        DumbSlave agent = (DumbSlave) TestUtil.setupAgent(j, agentTmp, agents, null, 2, "small");
+        ThrottleJobProperty.ThrottleCategory category = new ThrottleJobProperty.ThrottleCategory(
+                "labeled", 3, 0, Collections.singletonList(new ThrottleJobProperty.NodeLabeledPair("small", 1)));
+        TestUtil.setupCategories(category);
+        NodeCategoryLimits limits = NodeCategoryLimits.get();
+        AtomicInteger resolved = new AtomicInteger();
+
+        assertEquals(1, limit(limits, agent, category, resolved));
+        assertEquals(1, limit(limits, agent, category, resolved));
+        assertEquals(1, resolved.get());
+
+        agent.setLabelString("large");
+        j.jenkins.updateNode(agent);
+
+        assertEquals(3, limit(limits, agent, category, resolved));
+        assertEquals(2, resolved.get());
+
+        ThrottleJobProperty.fetchDescriptor().save();
+        assertEquals(3, limit(limits, agent, category, resolved));
+        assertEquals(3, resolved.get());
+    }
+
+    private static int limit(
+            NodeCategoryLimits limits,
+            Node node,
+            ThrottleJobProperty.ThrottleCategory category,
+            AtomicInteger resolved) {
+        return limits.get(node, category, (n, c) -> {
+            resolved.incrementAndGet();
+            for (ThrottleJobProperty.NodeLabeledPair pair : c.getNodeLabeledPairs()) {
+                if (n.getLabelString().equals(pair.getThrottledNodeLabel())) {
+                    return pair.getMaxConcurrentPerNodeLabeled();
+                }
+            }
+            return c.getMaxConcurrentPerNode();
+        });
+    }
+}
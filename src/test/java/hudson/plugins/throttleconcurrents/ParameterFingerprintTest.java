@@ -0,0 +1,64 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import hudson.model.TextParameterValue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+public class ParameterFingerprintTest {
+
+    @Test
+    public void keepsOnlyComparedParameters() {
+        List<ParameterValue> parameters =
+                Arrays.asList(new StringParameterValue("FOO", "foo"), new StringParameterValue("BAR", "bar"));
+
+        assertEquals(
+                Collections.singleton(new StringParameterValue("FOO", "foo")),
+                ParameterFingerprint.keysOf(parameters, Set.of("FOO", "BAZ")));
+        assertEquals(2, ParameterFingerprint.keysOf(parameters, Set.of()).size());
+    }
+
+    @Test
+    public void longValuesAreComparedByDigest() {
+        String text = "x".repeat(ParameterFingerprint.DIGEST_THRESHOLD);
+        Set<Object> keys = ParameterFingerprint.keysOf(
+                Collections.singletonList(new TextParameterValue("TEXT", text)), Set.of());
+        Object key = keys.iterator().next();
+
+        assertFalse(key instanceof ParameterValue);
+        assertEquals(
+                keys,
+                ParameterFingerprint.keysOf(Collections.singletonList(new TextParameterValue("TEXT", text)), Set.of()));
+        assertNotEquals(
+                keys,
+                ParameterFingerprint.keysOf(
+                        Collections.singletonList(new TextParameterValue("TEXT", text + "y")), Set.of()));
+        assertNotEquals(
+                keys,
+                ParameterFingerprint.keysOf(
+                        Collections.singletonList(new StringParameterValue("TEXT", text)), Set.of()));
+    }
+
+    @Test
+    public void fingerprintRemembersItsSource() {
+        ParametersAction source = new ParametersAction(new StringParameterValue("FOO", "foo"));
+        Set<String> names = Set.of("FOO");
+        ParameterFingerprint fingerprint = ParameterFingerprint.of(source, names);
+
+        assertTrue(fingerprint.isFor(source, Set.of("FOO")));
+        assertFalse(fingerprint.isFor(new ParametersAction(new StringParameterValue("FOO", "foo")), names));
+        assertFalse(fingerprint.isFor(source, Set.of()));
+        assertEquals(Collections.singleton(new StringParameterValue("FOO", "foo")), fingerprint.keys());
+        assertTrue(ParameterFingerprint.of(null, names).keys().isEmpty());
+    }
+}
@@ -0,0 +1,76 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import java.util.Calendar;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/** Tests that {@link PendingItemsIndex} follows items as they move through the queue. */
+public class PendingItemsIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void followsQueueEvents() throws Exception {
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE);
+        String category = TestUtil.ONE_PER_NODE.getCategoryName();
+        FreeStyleProject p = throttledProject(category);
+        PendingItemsIndex index = PendingItemsIndex.get();
+        assertEquals(0, index.reconcile());
+
+        // Enter and leave the pending state without being started.
+        Queue.WaitingItem wi = new Queue.WaitingItem(Calendar.getInstance(), p, Collections.emptyList());
+        index.onLeaveWaiting(wi);
+        assertTrue(index.isPending(p));
+        assertTrue(index.isCategoryPending(category));
+        Queue.BuildableItem bi = new Queue.BuildableItem(wi);
+        index.onEnterBuildable(bi);
+        assertFalse(index.isPending(p));
+        assertFalse(index.isCategoryPending(category));
+
+        // Cancelled while pending.
+        index.onLeaveBuildable(bi);
+        assertTrue(index.isCategoryPending(category));
+        index.onLeft(new Queue.LeftItem(bi));
+        assertFalse(index.isPending(p));
+        assertFalse(index.isCategoryPending(category));
+
+        // Started for real.
+        j.buildAndAssertSuccess(p);
+        assertFalse(index.isPending(p));
+        assertFalse(index.isCategoryPending(category));
+        assertEquals(0, index.reconcile());
+    }
+
+    @Test
+    public void ignoresUnthrottledTasks() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        PendingItemsIndex index = PendingItemsIndex.get();
+        assertEquals(0, index.reconcile());
+
+        index.onLeaveWaiting(new Queue.WaitingItem(Calendar.getInstance(), p, Collections.emptyList()));
+        assertFalse(index.isPending(p));
+    }
+
+    private FreeStyleProject throttledProject(String category) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList(category),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false,
+                null,
+                ThrottleMatrixProjectOptions.DEFAULT));
+        return p;
+    }
+}
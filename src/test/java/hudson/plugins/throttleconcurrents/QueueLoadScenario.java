@@ -0,0 +1,246 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertTrue;
+
+import hudson.ExtensionList;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.RetentionStrategy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+/**
+ * Load scenario measuring how long each {@link Queue#maintain} cycle spends in {@link ThrottleQueueTaskDispatcher}, on
+ * a queue of thousands of freestyle and Pipeline items spread over many categories while builds keep starting and
+ * finishing.
+ *
+ * <p>Not a regular test: run it with {@code mvn test -Dtest=QueueLoadScenario}. The size of the scenario can be changed
+ * with the system properties below, and {@code budgetMillis} makes it fail if the 99th percentile of the time spent in
+ * the dispatcher per cycle exceeds that budget.
+ */
+public class QueueLoadScenario {
+
+    private static final String PREFIX = QueueLoadScenario.class.getName() + ".";
+
+    /** Agents that are connected and run builds. */
+    private static final int ONLINE_AGENTS = Integer.getInteger(PREFIX + "onlineAgents", 4);
+
+    private static final int EXECUTORS_PER_AGENT = Integer.getInteger(PREFIX + "executorsPerAgent", 8);
+
+    /** Agents that are only configured, never connected, like agents of a cloud that are not provisioned. */
+    private static final int DUMMY_AGENTS = Integer.getInteger(PREFIX + "dummyAgents", 300);
+
+    private static final int CATEGORIES = Integer.getInteger(PREFIX + "categories", 50);
+    private static final int FREESTYLE_JOBS = Integer.getInteger(PREFIX + "freestyleJobs", 200);
+    private static final int FREESTYLE_BUILDS_PER_JOB = Integer.getInteger(PREFIX + "freestyleBuildsPerJob", 10);
+    private static final int PIPELINE_JOBS = Integer.getInteger(PREFIX + "pipelineJobs", 50);
+    private static final int PIPELINE_BUILDS_PER_JOB = Integer.getInteger(PREFIX + "pipelineBuildsPerJob", 10);
+    private static final int CYCLES = Integer.getInteger(PREFIX + "cycles", 200);
+    private static final long BUILD_MILLIS = Long.getLong(PREFIX + "buildMillis", 200);
+    private static final long BUDGET_MILLIS = Long.getLong(PREFIX + "budgetMillis", 0);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder agentTmp = new TemporaryFolder();
+
+    private List<Node> agents = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtil.tearDown(j, agents);
+        agents = new ArrayList<>();
+    }
+
+    @Test
+    public void dispatcherShareOfQueueMaintenance() throws Exception {
+        List<ThrottleJobProperty.ThrottleCategory> categories = new ArrayList<>();
+        for (int i = 0; i < CATEGORIES; i++) {
+            categories.add(new ThrottleJobProperty.ThrottleCategory("category-" + i, 1 + i % 3, 2 + i % 5, null));
+        }
+        TestUtil.setupCategories(categories.toArray(new ThrottleJobProperty.ThrottleCategory[0]));
+
+        for (int i = 0; i < ONLINE_AGENTS; i++) {
+            TestUtil.setupAgent(j, agentTmp, agents, null, EXECUTORS_PER_AGENT, "load");
+        }
+        for (int i = 0; i < DUMMY_AGENTS; i++) {
+            DumbSlave agent = new DumbSlave("dummy-" + i, agentTmp.getRoot().getPath(), new JNLPLauncher());
+            agent.setLabelString("load");
+            agent.setRetentionStrategy(RetentionStrategy.NOOP);
+            j.jenkins.addNode(agent);
+            agents.add(agent);
+        }
+
+        TimingDispatcher timing = TimingDispatcher.install();
+        Queue queue = Queue.getInstance();
+
+        for (int i = 0; i < FREESTYLE_JOBS; i++) {
+            FreeStyleProject project = j.createFreeStyleProject("freestyle-" + i);
+            project.setConcurrentBuild(true);
+            project.setAssignedLabel(j.jenkins.getLabel("load"));
+            project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("N", "")));
+            project.addProperty(new ThrottleJobProperty(
+                    null, // maxConcurrentPerNode
+                    null, // maxConcurrentTotal
+                    Arrays.asList("category-" + i % CATEGORIES, "category-" + (i + 1) % CATEGORIES),
+                    true, // throttleEnabled
+                    TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                    i % 10 == 0, // limitOneJobWithMatchingParams
+                    null, // paramsToUseForLimit
+                    ThrottleMatrixProjectOptions.DEFAULT));
+            project.getBuildersList().add(new SleepBuilder(BUILD_MILLIS));
+            for (int b = 0; b < FREESTYLE_BUILDS_PER_JOB; b++) {
+                project.scheduleBuild2(0, new ParametersAction(new StringParameterValue("N", Integer.toString(b))));
+            }
+        }
+        for (int i = 0; i < PIPELINE_JOBS; i++) {
+            WorkflowJob pipeline = j.createProject(WorkflowJob.class, "pipeline-" + i);
+            pipeline.setDefinition(new CpsFlowDefinition(
+                    "throttle(['category-" + i % CATEGORIES + "']) {\n"
+                            + "  node('load') { sleep time: " + BUILD_MILLIS + ", unit: 'MILLISECONDS' }\n"
+                            + "}\n",
+                    true));
+            pipeline.setConcurrentBuild(true);
+            for (int b = 0; b < PIPELINE_BUILDS_PER_JOB; b++) {
+                pipeline.scheduleBuild2(0, new ParametersAction(new StringParameterValue("N", Integer.toString(b))));
+            }
+        }
+
+        long[] dispatcherNanos = new long[CYCLES];
+        long[] maintainNanos = new long[CYCLES];
+        int[] items = new int[CYCLES];
+        for (int cycle = 0; cycle < CYCLES; cycle++) {
+            timing.reset();
+            long start = System.nanoTime();
+            queue.maintain();
+            maintainNanos[cycle] = System.nanoTime() - start;
+            dispatcherNanos[cycle] = timing.nanos();
+            items[cycle] = queue.getItems().length;
+            Thread.sleep(BUILD_MILLIS / 4);
+        }
+
+        long[] sortedItems = Arrays.stream(items).asLongStream().sorted().toArray();
+        long[] sortedDispatcher = dispatcherNanos.clone();
+        long[] sortedMaintain = maintainNanos.clone();
+        Arrays.sort(sortedDispatcher);
+        Arrays.sort(sortedMaintain);
+        long totalDispatcher = Arrays.stream(dispatcherNanos).sum();
+        long totalMaintain = Arrays.stream(maintainNanos).sum();
+        System.out.printf(
+                "Queue load: %d cycles, %d to %d queued items, %d online and %d dummy agents%n",
+                CYCLES, sortedItems[0], sortedItems[sortedItems.length - 1], ONLINE_AGENTS, DUMMY_AGENTS);
+        System.out.printf(
+                "  dispatcher per cycle: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                millis(percentile(sortedDispatcher, 50)),
+                millis(percentile(sortedDispatcher, 99)),
+                millis(sortedDispatcher[sortedDispatcher.length - 1]));
+        System.out.printf(
+                "  Queue.maintain per cycle: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                millis(percentile(sortedMaintain, 50)),
+                millis(percentile(sortedMaintain, 99)),
+                millis(sortedMaintain[sortedMaintain.length - 1]));
+        System.out.printf(
+                "  dispatcher share of Queue.maintain: %.1f%% over %d calls%n",
+                totalMaintain > 0 ? 100.0 * totalDispatcher / totalMaintain : 0.0, timing.calls());
+
+        if (BUDGET_MILLIS > 0) {
+            assertTrue(
+                    "p99 of the time spent in the dispatcher per cycle exceeds " + BUDGET_MILLIS + " ms",
+                    percentile(sortedDispatcher, 99) <= TimeUnit.MILLISECONDS.toNanos(BUDGET_MILLIS));
+        }
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    /**
+     * Stands in for {@link ThrottleQueueTaskDispatcher} in the list of dispatchers consulted by the queue, timing the
+     * calls made to it by the thread measuring {@link Queue#maintain}.
+     */
+    private static final class TimingDispatcher extends QueueTaskDispatcher {
+
+        private final ThrottleQueueTaskDispatcher delegate;
+        private final Thread measuring = Thread.currentThread();
+        private long nanos;
+        private long calls;
+
+        private TimingDispatcher(ThrottleQueueTaskDispatcher delegate) {
+            this.delegate = delegate;
+        }
+
+        @SuppressWarnings("deprecation")
+        static TimingDispatcher install() {
+            ExtensionList<QueueTaskDispatcher> dispatchers = QueueTaskDispatcher.all();
+            ThrottleQueueTaskDispatcher delegate = ThrottleQueueTaskDispatcher.get();
+            TimingDispatcher timing = new TimingDispatcher(delegate);
+            dispatchers.remove(delegate);
+            dispatchers.add(timing);
+            return timing;
+        }
+
+        void reset() {
+            nanos = 0;
+        }
+
+        long nanos() {
+            return nanos;
+        }
+
+        long calls() {
+            return calls;
+        }
+
+        @Override
+        public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+            long start = System.nanoTime();
+            try {
+                return delegate.canTake(node, item);
+            } finally {
+                record(start);
+            }
+        }
+
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            long start = System.nanoTime();
+            try {
+                return delegate.canRun(item);
+            } finally {
+                record(start);
+            }
+        }
+
+        private void record(long start) {
+            if (Thread.currentThread() == measuring) {
+                nanos += System.nanoTime() - start;
+                calls++;
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/** Tests that {@link QueuedParameterFingerprints} computes the keys of a queued item once, for as long as it waits. */
+public class QueuedParameterFingerprintsTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void keysAreKeptWhileQueuedAndDroppedOnLeaving() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("FOO", ""), new StringParameterDefinition("BAR", "")));
+        p.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                null, // categories
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_PROJECT, // throttleOption
+                true, // limitOneJobWithMatchingParams
+                "FOO", // paramsToUseForLimit
+                ThrottleMatrixProjectOptions.DEFAULT));
+        // No node has the label, so the item stays in the queue.
+        p.setAssignedLabel(Label.get("nowhere"));
+        QueuedParameterFingerprints fingerprints = QueuedParameterFingerprints.get();
+        Set<String> names = p.getProperty(ThrottleJobProperty.class).getParamNamesToCompare();
+
+        ParametersAction parameters =
+                new ParametersAction(new StringParameterValue("FOO", "foo"), new StringParameterValue("BAR", "bar"));
+        p.scheduleBuild2(0, parameters);
+        Queue.Item item = j.jenkins.getQueue().getItem(p);
+        assertNotNull(item);
+        Set<Object> keys = fingerprints.keysOf(item, names);
+        assertEquals(1, keys.size());
+
+        // The dispatcher checks the item on every maintenance, without computing its keys again.
+        for (int i = 0; i < 3; i++) {
+            j.jenkins.getQueue().maintain();
+            item = j.jenkins.getQueue().getItem(p);
+            assertNotNull(item);
+            assertSame(keys, fingerprints.keysOf(item, names));
+        }
+
+        j.jenkins.getQueue().cancel(item);
+        assertNotSame(keys, fingerprints.keysOf(item, names));
+    }
+}
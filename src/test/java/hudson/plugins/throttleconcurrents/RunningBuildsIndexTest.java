@@ -0,0 +1,256 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.util.OneShotEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+/** Tests that {@link RunningBuildsIndex} follows builds as they start and finish. */
+public class RunningBuildsIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder agentTmp = new TemporaryFolder();
+
+    private List<Node> agents = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtil.tearDown(j, agents);
+        agents = new ArrayList<>();
+    }
+
+    @Test
+    public void countsFollowBuilds() throws Exception {
+        Node agent = TestUtil.setupAgent(j, agentTmp, agents, null, 2, null);
+        RunningBuildsIndex index = RunningBuildsIndex.get();
+
+        FreeStyleProject p = throttledProject();
+        p.setAssignedNode(agent);
+        p.setConcurrentBuild(true);
+        OneShotEvent release = new OneShotEvent();
+        p.getBuildersList().add(new BlockingBuilder(release));
+
+        FreeStyleBuild b1 = p.scheduleBuild2(0).waitForStart();
+        FreeStyleBuild b2 = p.scheduleBuild2(0).waitForStart();
+
+        assertEquals(2, index.countOnNode(agent, p));
+        assertEquals(0, index.countOnNode(j.jenkins, p));
+        assertEquals(2, index.countOnAllNodes(p));
+        assertEquals(0, index.reconcile());
+
+        release.signal();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+        j.waitUntilNoActivity();
+
+        assertEquals(0, index.countOnNode(agent, p));
+        assertEquals(0, index.countOnAllNodes(p));
+        assertEquals(0, index.reconcile());
+    }
+
+    @Test
+    public void ignoresUnthrottledBuilds() throws Exception {
+        RunningBuildsIndex index = RunningBuildsIndex.get();
+
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("FOO", "")));
+        OneShotEvent release = new OneShotEvent();
+        p.getBuildersList().add(new BlockingBuilder(release));
+
+        ParameterValue foo = new StringParameterValue("FOO", "foo");
+        FreeStyleBuild b = p.scheduleBuild2(0, new ParametersAction(foo)).waitForStart();
+
+        assertEquals(0, index.countOnAllNodes(p));
+        assertNull(index.findRunningWithParameters(p.getName(), Collections.singletonList(foo)));
+        assertEquals(0, index.reconcile());
+
+        release.signal();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+    }
+
+    @Test
+    public void categoryCountsFollowBuilds() throws Exception {
+        Node agent = TestUtil.setupAgent(j, agentTmp, agents, null, 2, null);
+        TestUtil.setupCategories(TestUtil.TWO_TOTAL, TestUtil.ONE_PER_NODE);
+        RunningBuildsIndex index = RunningBuildsIndex.get();
+
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedNode(agent);
+        p.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList(TestUtil.TWO_TOTAL.getCategoryName()),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false,
+                null,
+                ThrottleMatrixProjectOptions.DEFAULT));
+        OneShotEvent release = new OneShotEvent();
+        p.getBuildersList().add(new BlockingBuilder(release));
+
+        FreeStyleBuild b = p.scheduleBuild2(0).waitForStart();
+
+        assertEquals(1, index.countCategoryOnAllNodes(TestUtil.TWO_TOTAL.getCategoryName()));
+        assertEquals(0, index.countCategoryOnAllNodes(TestUtil.ONE_PER_NODE.getCategoryName()));
+
+        release.signal();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+        j.waitUntilNoActivity();
+
+        assertEquals(0, index.countCategoryOnAllNodes(TestUtil.TWO_TOTAL.getCategoryName()));
+    }
+
+    @Test
+    public void parametersFollowBuilds() throws Exception {
+        RunningBuildsIndex index = RunningBuildsIndex.get();
+
+        FreeStyleProject p = throttledProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("FOO", ""), new StringParameterDefinition("BAR", "")));
+        p.setConcurrentBuild(true);
+        OneShotEvent release = new OneShotEvent();
+        p.getBuildersList().add(new BlockingBuilder(release));
+
+        ParameterValue foo = new StringParameterValue("FOO", "foo");
+        ParameterValue bar = new StringParameterValue("BAR", "bar");
+        FreeStyleBuild b = p.scheduleBuild2(0, new ParametersAction(foo, bar)).waitForStart();
+
+        assertNotNull(index.findRunningWithParameters(p.getName(), Collections.singletonList(foo)));
+        assertNotNull(index.findRunningWithParameters(p.getName(), Arrays.asList(bar, foo)));
+        assertNull(index.findRunningWithParameters(
+                p.getName(), Collections.singletonList(new StringParameterValue("FOO", "other"))));
+        assertNull(index.findRunningWithParameters("other", Collections.singletonList(foo)));
+        assertEquals(0, index.reconcile());
+
+        release.signal();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+        j.waitUntilNoActivity();
+
+        assertNull(index.findRunningWithParameters(p.getName(), Collections.emptyList()));
+    }
+
+    @Test
+    public void runningBuildWithMatchingParametersBlocksQueuedOne() throws Exception {
+        Node agent = TestUtil.setupAgent(j, agentTmp, agents, null, 2, null);
+        FreeStyleProject p = projectLimitedToOneBuildPerFoo(agent);
+        OneShotEvent release = new OneShotEvent();
+        p.getBuildersList().add(new BlockingBuilder(release));
+
+        ParameterValue foo = new StringParameterValue("FOO", "foo");
+        FreeStyleBuild running = p.scheduleBuild2(0, new ParametersAction(foo, new StringParameterValue("BAR", "1")))
+                .waitForStart();
+        // Only FOO is compared, so a different BAR does not matter.
+        QueueTaskFuture<FreeStyleBuild> queued =
+                p.scheduleBuild2(0, new ParametersAction(foo, new StringParameterValue("BAR", "2")));
+        j.jenkins.getQueue().maintain();
+
+        Queue.Item item = j.jenkins.getQueue().getItem(p);
+        assertNotNull(item);
+        assertTrue(item.isBlocked());
+        CauseOfBlockage cause = ThrottleQueueTaskDispatcher.get().canRun(item);
+        assertNotNull(cause);
+        assertEquals(
+                Messages.ThrottleQueueTaskDispatcher_OnlyOneWithMatchingParameters(), cause.getShortDescription());
+
+        release.signal();
+        j.assertBuildStatusSuccess(j.waitForCompletion(running));
+        j.assertBuildStatusSuccess(j.waitForCompletion(queued.waitForStart()));
+    }
+
+    @Test
+    public void runningBuildWithOtherParametersDoesNotBlockQueuedOne() throws Exception {
+        Node agent = TestUtil.setupAgent(j, agentTmp, agents, null, 2, null);
+        FreeStyleProject p = projectLimitedToOneBuildPerFoo(agent);
+        OneShotEvent release = new OneShotEvent();
+        p.getBuildersList().add(new BlockingBuilder(release));
+
+        ParameterValue bar = new StringParameterValue("BAR", "1");
+        FreeStyleBuild first = p.scheduleBuild2(0, new ParametersAction(new StringParameterValue("FOO", "foo"), bar))
+                .waitForStart();
+        FreeStyleBuild second = p.scheduleBuild2(0, new ParametersAction(new StringParameterValue("FOO", "other"), bar))
+                .waitForStart();
+        assertTrue(first.isBuilding());
+        assertTrue(second.isBuilding());
+
+        release.signal();
+        j.assertBuildStatusSuccess(j.waitForCompletion(first));
+        j.assertBuildStatusSuccess(j.waitForCompletion(second));
+    }
+
+    /** A project whose builds may run concurrently on the given node, unless their {@code FOO} parameters match. */
+    private FreeStyleProject projectLimitedToOneBuildPerFoo(Node agent) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedNode(agent);
+        p.setConcurrentBuild(true);
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("FOO", ""), new StringParameterDefinition("BAR", "")));
+        p.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                null, // categories
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_PROJECT, // throttleOption
+                true, // limitOneJobWithMatchingParams
+                "FOO", // paramsToUseForLimit
+                ThrottleMatrixProjectOptions.DEFAULT));
+        return p;
+    }
+
+    private FreeStyleProject throttledProject() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                null, // categories
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_PROJECT, // throttleOption
+                false,
+                null,
+                ThrottleMatrixProjectOptions.DEFAULT));
+        return p;
+    }
+
+    private static class BlockingBuilder extends TestBuilder {
+        private final OneShotEvent release;
+
+        BlockingBuilder(OneShotEvent release) {
+            this.release = release;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException {
+            release.block();
+            return true;
+        }
+    }
+}
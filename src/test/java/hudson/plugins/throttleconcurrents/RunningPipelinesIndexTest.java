@@ -0,0 +1,109 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/** Tests that {@link RunningPipelinesIndex} follows Pipeline builds as they start and finish. */
+public class RunningPipelinesIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void countsFollowBuilds() throws Exception {
+        RunningPipelinesIndex index = RunningPipelinesIndex.get();
+
+        WorkflowJob p = j.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("semaphore 'wait'", true));
+        WorkflowJob other = j.createProject(WorkflowJob.class);
+        assertEquals(0, index.count(p));
+
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b1);
+        WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/2", b2);
+
+        assertEquals(2, index.count(p));
+        assertEquals(0, index.count(other));
+        assertEquals(0, index.reconcile());
+
+        SemaphoreStep.success("wait/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        assertEquals(1, index.count(p));
+
+        SemaphoreStep.success("wait/2", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+        assertEquals(0, index.count(p));
+        assertEquals(0, index.reconcile());
+    }
+
+    @Test
+    public void categoryCountsFollowBuilds() throws Exception {
+        TestUtil.setupCategories(TestUtil.TWO_TOTAL, TestUtil.ONE_PER_NODE);
+        String category = TestUtil.TWO_TOTAL.getCategoryName();
+        RunningPipelinesIndex index = RunningPipelinesIndex.get();
+
+        WorkflowJob p = j.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("semaphore 'wait'", true));
+        p.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList(category),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false,
+                null,
+                ThrottleMatrixProjectOptions.DEFAULT));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+
+        assertEquals(1, index.countCategory(category));
+        assertEquals(0, index.countCategory(TestUtil.ONE_PER_NODE.getCategoryName()));
+        assertEquals(1, RunningBuildsIndex.get().countPipelineJobsInCategory(category));
+
+        // Moved to another category while running.
+        p.removeProperty(ThrottleJobProperty.class);
+        p.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList(TestUtil.ONE_PER_NODE.getCategoryName()),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false,
+                null,
+                ThrottleMatrixProjectOptions.DEFAULT));
+        assertEquals(1, index.reconcile());
+        assertEquals(0, index.countCategory(category));
+        assertEquals(1, index.countCategory(TestUtil.ONE_PER_NODE.getCategoryName()));
+
+        SemaphoreStep.success("wait/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+        assertEquals(0, index.countCategory(TestUtil.ONE_PER_NODE.getCategoryName()));
+    }
+
+    @Test
+    public void completedExecutionsAreNotAdded() throws Exception {
+        RunningPipelinesIndex index = RunningPipelinesIndex.get();
+
+        WorkflowJob p = j.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("semaphore 'wait'", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+        assertEquals(1, index.count(p));
+        SemaphoreStep.success("wait/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+
+        // As if seeding had read the execution before it completed.
+        index.onResumed(b.getExecution());
+        assertEquals(0, index.count(p));
+        assertEquals(0, index.reconcile());
+    }
+}
@@ -4,6 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -31,6 +34,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
 import org.jvnet.hudson.test.WithoutJenkins;
 import org.jvnet.hudson.test.recipes.LocalData;
 
@@ -92,6 +96,107 @@ public class ThrottleJobPropertyTest {
         assertProjects(beta, p3b);
     }
 
+    @Test
+    public void categoryTasksFollowReconfiguration() throws Exception {
+        String alpha = "alpha", beta = "beta"; // category names
+        FreeStyleProject p = j.createFreeStyleProject("p");
+        p.addProperty(new ThrottleJobProperty(
+                1,
+                1,
+                Collections.singletonList(alpha),
+                true,
+                TestUtil.THROTTLE_OPTION_CATEGORY,
+                false,
+                "",
+                ThrottleMatrixProjectOptions.DEFAULT));
+        assertProjects(alpha, p);
+        assertProjects(beta);
+        p.removeProperty(ThrottleJobProperty.class);
+        p.addProperty(new ThrottleJobProperty(
+                1,
+                1,
+                Collections.singletonList(beta),
+                true,
+                TestUtil.THROTTLE_OPTION_CATEGORY,
+                false,
+                "",
+                ThrottleMatrixProjectOptions.DEFAULT));
+        assertProjects(alpha);
+        assertProjects(beta, p);
+        CategoryMembershipIndex.get().rebuild();
+        assertProjects(alpha);
+        assertProjects(beta, p);
+    }
+
+    @Test
+    public void categoryTasksFollowFolders() throws Exception {
+        String alpha = "alpha"; // category name
+        MockFolder f = j.createFolder("f");
+        FreeStyleProject p = f.createProject(FreeStyleProject.class, "p");
+        p.addProperty(new ThrottleJobProperty(
+                1,
+                1,
+                Collections.singletonList(alpha),
+                true,
+                TestUtil.THROTTLE_OPTION_CATEGORY,
+                false,
+                "",
+                ThrottleMatrixProjectOptions.DEFAULT));
+        FreeStyleProject q = f.createProject(FreeStyleProject.class, "q");
+        q.addProperty(new ThrottleJobProperty(
+                1,
+                1,
+                Collections.singletonList(alpha),
+                true,
+                TestUtil.THROTTLE_OPTION_CATEGORY,
+                false,
+                "",
+                ThrottleMatrixProjectOptions.DEFAULT));
+        assertProjects(alpha, p, q);
+        f.renameTo("g");
+        assertProjects(alpha, p, q);
+        // only found under its new name
+        p.delete();
+        assertProjects(alpha, q);
+        f.delete();
+        assertProjects(alpha);
+    }
+
+    @Test
+    public void throttledJobsFollowRenamesAndDeletions() throws Exception {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        ThrottleQueueTaskDispatcher dispatcher = ThrottleQueueTaskDispatcher.get();
+        FreeStyleProject unthrottled = j.createFreeStyleProject("unthrottled");
+        FreeStyleProject disabled = j.createFreeStyleProject("disabled");
+        disabled.addProperty(new ThrottleJobProperty(
+                1,
+                1,
+                Collections.singletonList("alpha"),
+                false,
+                TestUtil.THROTTLE_OPTION_CATEGORY,
+                false,
+                "",
+                ThrottleMatrixProjectOptions.DEFAULT));
+        FreeStyleProject throttled = j.createFreeStyleProject("throttled");
+        throttled.addProperty(new ThrottleJobProperty(
+                1,
+                1,
+                Collections.singletonList("alpha"),
+                true,
+                TestUtil.THROTTLE_OPTION_CATEGORY,
+                false,
+                "",
+                ThrottleMatrixProjectOptions.DEFAULT));
+        assertFalse(dispatcher.mayBeThrottled(unthrottled));
+        assertFalse(dispatcher.mayBeThrottled(disabled));
+        assertTrue(dispatcher.mayBeThrottled(throttled));
+        throttled.renameTo("renamed");
+        assertFalse(descriptor.isThrottledJob("throttled"));
+        assertTrue(dispatcher.mayBeThrottled(throttled));
+        throttled.delete();
+        assertFalse(descriptor.isThrottledJob("renamed"));
+    }
+
     @Test
     @WithoutJenkins
     public void testToStringWithNulls() {
@@ -363,12 +468,14 @@ public class ThrottleJobPropertyTest {
         ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
         assertNotNull(descriptor);
 
-        assertTrue(descriptor.getCategories() instanceof CopyOnWriteArrayList);
-
         final ThrottleJobProperty.ThrottleCategory category =
                 new ThrottleJobProperty.ThrottleCategory(anyString(), anyInt(), anyInt(), null);
 
-        List<ThrottleJobProperty.ThrottleCategory> unsafeList = Collections.singletonList(category);
+        // Only changed through setCategories, so that the lookup by name follows.
+        assertThrows(UnsupportedOperationException.class, () -> descriptor.getCategories().add(category));
+
+        List<ThrottleJobProperty.ThrottleCategory> unsafeList = new ArrayList<>();
+        unsafeList.add(category);
 
         descriptor.setCategories(unsafeList);
         List<ThrottleJobProperty.ThrottleCategory> storedCategories = descriptor.getCategories();
@@ -377,7 +484,12 @@ public class ThrottleJobPropertyTest {
                 "expected unsafe list to be converted to a converted to some other" + " concurrency-safe impl",
                 unsafeList,
                 storedCategories);
-        assertTrue(storedCategories instanceof CopyOnWriteArrayList);
+        // Iterating the stored list is safe while the categories are set again.
+        for (ThrottleJobProperty.ThrottleCategory c : storedCategories) {
+            descriptor.setCategories(Arrays.asList(c, c));
+        }
+        assertEquals(1, storedCategories.size());
+        assertSame(category, descriptor.getCategoryByName(category.getCategoryName()));
     }
 
     /**
@@ -437,12 +549,68 @@ public class ThrottleJobPropertyTest {
         assertTrue(descriptor.getCategories().isEmpty());
     }
 
+    @Test
+    public void reloadKeepsUnflushedThrottledPipelines() throws Exception {
+        String category = TestUtil.ONE_PER_NODE.getCategoryName();
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE);
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        descriptor.addThrottledPipelineForCategory("first-job#1", "3", category, null);
+        descriptor.addThrottledPipelineForCategory("second-job#1", "3", category, null);
+        descriptor.load();
+
+        // Both appends were still buffered when reloading, unless this thread was held up for the whole flush delay.
+        descriptor.addThrottledPipelineForCategory("third-job#1", "3", category, null);
+        descriptor.removeAllFromPipelineRunForCategory("second-job#1", category, null);
+        descriptor.load();
+
+        assertTrue(descriptor.isThrottledRun("first-job#1"));
+        assertFalse(descriptor.isThrottledRun("second-job#1"));
+        assertTrue(descriptor.isThrottledRun("third-job#1"));
+
+        // Changes after a reload are still journaled.
+        descriptor.removeAllFromPipelineRunForCategory("first-job#1", category, null);
+        descriptor.load();
+        assertFalse(descriptor.isThrottledRun("first-job#1"));
+        assertTrue(descriptor.isThrottledRun("third-job#1"));
+    }
+
+    @Test
+    public void getCategoryByNameFollowsConfiguredCategories() throws Exception {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        assertNotNull(descriptor);
+
+        ThrottleJobProperty.ThrottleCategory first = new ThrottleJobProperty.ThrottleCategory("cat", 1, 1, null);
+        ThrottleJobProperty.ThrottleCategory second = new ThrottleJobProperty.ThrottleCategory("cat", 2, 2, null);
+        descriptor.setCategories(Arrays.asList(first, second));
+        assertSame(second, descriptor.getCategoryByName("cat"));
+        assertNull(descriptor.getCategoryByName("other"));
+
+        ThrottleJobProperty.ThrottleCategory other = new ThrottleJobProperty.ThrottleCategory("other", 1, 1, null);
+        descriptor.setCategories(Collections.singletonList(other));
+        assertNull(descriptor.getCategoryByName("cat"));
+        assertSame(other, descriptor.getCategoryByName("other"));
+
+        // Delete the category via the UI and save.
+        descriptor.save();
+        HtmlPage page = j.createWebClient().goTo("configure");
+        WebClientUtil.waitForJSExec(page.getWebClient());
+        HtmlForm config = page.getFormByName("config");
+        List<HtmlButton> deleteButtons =
+                config.getByXPath("//div[text()='Multi-Project Throttle Categories']/../div//button[@title='Delete']");
+        assertEquals(1, deleteButtons.size());
+        deleteButtons.get(0).click();
+        WebClientUtil.waitForJSExec(page.getWebClient());
+        j.submit(config);
+
+        assertNull(descriptor.getCategoryByName("other"));
+    }
+
     private void assertProjects(String category, AbstractProject<?, ?>... projects) {
         j.jenkins.setAuthorizationStrategy(new RejectAllAuthorizationStrategy());
         try {
             assertEquals(
                     new HashSet<Queue.Task>(Arrays.asList(projects)),
-                    new HashSet<>(ThrottleJobProperty.getCategoryTasks(category)));
+                    CategoryMembershipIndex.get().getMembers(category));
         } finally {
             // do not check during e.g. rebuildDependencyGraph from delete
             j.jenkins.setAuthorizationStrategy(AuthorizationStrategy.UNSECURED);
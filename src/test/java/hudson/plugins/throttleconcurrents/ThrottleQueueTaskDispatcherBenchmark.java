@@ -0,0 +1,184 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.Action;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.RetentionStrategy;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution.PlaceholderTask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link ThrottleQueueTaskDispatcher#canTake} and {@link ThrottleQueueTaskDispatcher#canRun} against a
+ * synthetic fleet: many agents with several executors each, many jobs throttled by category, Pipeline builds running
+ * in {@code throttle} steps of those categories, and many queued items.
+ *
+ * <p>The agents are never connected, so their executors stay idle; the dispatcher gets the number of running builds
+ * from its indexes, so this measures the cost of the checks rather than that of the builds. The {@code node} blocks
+ * of the Pipeline builds ask for a label no agent has, so that they all stay in the queue as {@link PlaceholderTask}s
+ * and are checked along with the other items.
+ */
+@JmhBenchmark
+public class ThrottleQueueTaskDispatcherBenchmark {
+
+    public static class FleetState extends JmhBenchmarkState {
+
+        static final int NODES = 1000;
+        static final int EXECUTORS_PER_NODE = 8;
+        static final int LABELS = 20;
+        static final int CATEGORIES = 50;
+        static final int FREESTYLE_JOBS = 500;
+        static final int PIPELINE_JOBS = 50;
+        static final int PIPELINE_BUILDS_PER_JOB = 4;
+        static final int QUEUED_ITEMS = 2000;
+
+        @Param({"true", "false"})
+        public boolean useFlowExecutionList;
+
+        final List<Node> nodes = new ArrayList<>();
+        final List<Queue.Task> tasks = new ArrayList<>();
+        final List<Queue.Item> items = new ArrayList<>();
+
+        private int nextNode;
+        private int nextTask;
+        private int nextItem;
+
+        @Override
+        public void setup() throws Exception {
+            ThrottleQueueTaskDispatcher.USE_FLOW_EXECUTION_LIST = useFlowExecutionList;
+            Jenkins jenkins = getJenkins();
+
+            List<ThrottleJobProperty.ThrottleCategory> categories = new ArrayList<>();
+            for (int i = 0; i < CATEGORIES; i++) {
+                List<ThrottleJobProperty.NodeLabeledPair> pairs = new ArrayList<>();
+                for (int l = i % 4; l < LABELS; l += 4) {
+                    pairs.add(new ThrottleJobProperty.NodeLabeledPair("rack-" + l, 1 + l % 3));
+                }
+                // No limit per node, as all the Pipeline builds run on the built-in node.
+                categories.add(new ThrottleJobProperty.ThrottleCategory("category-" + i, 0, 100, pairs));
+            }
+            ThrottleJobProperty.fetchDescriptor().setCategories(categories);
+
+            List<Node> agents = new ArrayList<>();
+            for (int i = 0; i < NODES; i++) {
+                DumbSlave agent = new DumbSlave("agent-" + i, "/tmp/agent-" + i, new JNLPLauncher());
+                agent.setNumExecutors(EXECUTORS_PER_NODE);
+                agent.setMode(Node.Mode.NORMAL);
+                agent.setLabelString("rack-" + i % LABELS + " os-" + i % 3);
+                agent.setRetentionStrategy(RetentionStrategy.NOOP);
+                agents.add(agent);
+            }
+            jenkins.setNodes(agents);
+            nodes.addAll(jenkins.getNodes());
+
+            for (int i = 0; i < FREESTYLE_JOBS; i++) {
+                FreeStyleProject project = jenkins.createProject(FreeStyleProject.class, "freestyle-" + i);
+                project.setConcurrentBuild(true);
+                boolean matchingParams = i % 10 == 0;
+                project.addProperty(new ThrottleJobProperty(
+                        null, // maxConcurrentPerNode
+                        null, // maxConcurrentTotal
+                        List.of("category-" + i % CATEGORIES, "category-" + (i + 7) % CATEGORIES),
+                        true, // throttleEnabled
+                        TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                        matchingParams, // limitOneJobWithMatchingParams
+                        matchingParams ? "BRANCH" : null, // paramsToUseForLimit
+                        ThrottleMatrixProjectOptions.DEFAULT));
+                tasks.add(project);
+            }
+
+            for (int i = 0; i < PIPELINE_JOBS; i++) {
+                WorkflowJob pipeline = jenkins.createProject(WorkflowJob.class, "pipeline-" + i);
+                pipeline.setDefinition(new CpsFlowDefinition(
+                        "throttle(['category-" + (i + 3) % CATEGORIES + "']) {\n"
+                                + "  node('nowhere') {}\n"
+                                + "}\n",
+                        true));
+                pipeline.setConcurrentBuild(true);
+                pipeline.addProperty(new ThrottleJobProperty(
+                        null, // maxConcurrentPerNode
+                        null, // maxConcurrentTotal
+                        List.of("category-" + i % CATEGORIES),
+                        true, // throttleEnabled
+                        TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                        false, // limitOneJobWithMatchingParams
+                        null, // paramsToUseForLimit
+                        ThrottleMatrixProjectOptions.DEFAULT));
+                tasks.add(pipeline);
+                for (int b = 0; b < PIPELINE_BUILDS_PER_JOB; b++) {
+                    pipeline.scheduleBuild2(
+                            0, new ParametersAction(new StringParameterValue("N", Integer.toString(b))));
+                }
+            }
+
+            int expected = PIPELINE_JOBS * PIPELINE_BUILDS_PER_JOB;
+            List<Queue.Item> placeholders = new ArrayList<>();
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+            while (placeholders.size() < expected) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException(
+                            "Only " + placeholders.size() + " of " + expected + " node blocks queued");
+                }
+                Thread.sleep(100);
+                placeholders.clear();
+                for (Queue.Item item : Queue.getInstance().getItems()) {
+                    if (item.task instanceof PlaceholderTask) {
+                        placeholders.add(item);
+                    }
+                }
+            }
+            for (int i = 0; i < QUEUED_ITEMS; i++) {
+                Queue.Task task = tasks.get(i % tasks.size());
+                List<Action> actions = Collections.singletonList(
+                        new ParametersAction(new StringParameterValue("BRANCH", "branch-" + i % 17)));
+                items.add(new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), task, actions)));
+            }
+            for (Queue.Item item : placeholders) {
+                tasks.add(item.task);
+                items.add(item);
+            }
+        }
+
+        Node nextNode() {
+            nextNode = (nextNode + 1) % nodes.size();
+            return nodes.get(nextNode);
+        }
+
+        Queue.Task nextTask() {
+            nextTask = (nextTask + 1) % tasks.size();
+            return tasks.get(nextTask);
+        }
+
+        Queue.Item nextItem() {
+            nextItem = (nextItem + 1) % items.size();
+            return items.get(nextItem);
+        }
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public void canTake(FleetState state, Blackhole blackhole) {
+        blackhole.consume(ThrottleQueueTaskDispatcher.get().canTake(state.nextNode(), state.nextTask()));
+    }
+
+    @Benchmark
+    public void canRun(FleetState state, Blackhole blackhole) {
+        blackhole.consume(ThrottleQueueTaskDispatcher.get().canRun(state.nextItem()));
+    }
+}
@@ -18,6 +18,7 @@ import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.queue.QueueTaskFuture;
+import hudson.plugins.throttleconcurrents.pipeline.ThrottleCategoriesAction;
 import hudson.plugins.throttleconcurrents.pipeline.ThrottleStep;
 import hudson.util.CopyOnWriteMap;
 import java.util.ArrayList;
@@ -32,8 +33,11 @@ import java.util.stream.Collectors;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.cps.SnippetizerTester;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution.PlaceholderTask;
 import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 import org.junit.After;
 import org.junit.ClassRule;
@@ -559,4 +563,92 @@ public class ThrottleStepTest {
         SemaphoreStep.success("wait-second-job/1", null);
         j.assertBuildStatusSuccess(j.waitForCompletion(secondJobFirstRun));
     }
+
+    @Test
+    public void categoriesAreReadFromTheThrottleStep() throws Exception {
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE, TestUtil.OTHER_ONE_PER_NODE);
+        String category = TestUtil.ONE_PER_NODE.getCategoryName();
+
+        WorkflowRun run = startBlockedNodeInThrottle(category);
+        FlowNode throttleStart = throttleStartNode(run);
+        ThrottleCategoriesAction action = throttleStart.getAction(ThrottleCategoriesAction.class);
+        assertNotNull(action);
+        assertEquals(Collections.singletonList(category), action.getCategories());
+
+        // Leave the run throttled, but by another block, so that only the action can tell the categories of this one.
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        String runId = run.getExternalizableId();
+        descriptor.addThrottledPipelineForCategory(
+                runId, "elsewhere", TestUtil.OTHER_ONE_PER_NODE.getCategoryName(), null);
+        descriptor.forgetThrottledPipeline(runId, throttleStart.getId(), category);
+        assertFalse(descriptor.getCategoriesForRunByFlowNode(runId).containsKey(throttleStart.getId()));
+
+        SemaphoreStep.success("wait/1", null);
+        Queue.Item item = waitForQueuedNodeBlock(run);
+        assertEquals(
+                Collections.singletonList(category),
+                ThrottleQueueTaskDispatcher.get().categoriesOfPendingTask(item.task));
+
+        run.doStop();
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(run));
+    }
+
+    @Test
+    public void categoriesOfThrottleStepWithoutActionAreReadFromTheDescriptor() throws Exception {
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE);
+        String category = TestUtil.ONE_PER_NODE.getCategoryName();
+
+        WorkflowRun run = startBlockedNodeInThrottle(category);
+        // As for a block started before the categories were recorded on it.
+        FlowNode throttleStart = throttleStartNode(run);
+        throttleStart.removeAction(throttleStart.getAction(ThrottleCategoriesAction.class));
+        assertEquals(
+                Collections.singletonList(category),
+                ThrottleJobProperty.fetchDescriptor()
+                        .getCategoriesForRunByFlowNode(run.getExternalizableId())
+                        .get(throttleStart.getId()));
+
+        SemaphoreStep.success("wait/1", null);
+        Queue.Item item = waitForQueuedNodeBlock(run);
+        assertEquals(
+                Collections.singletonList(category),
+                ThrottleQueueTaskDispatcher.get().categoriesOfPendingTask(item.task));
+
+        run.doStop();
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(run));
+    }
+
+    /**
+     * Start a Pipeline build whose {@code throttle} step waits on semaphore {@code wait/1}, then runs a {@code node}
+     * block no agent can take.
+     */
+    private WorkflowRun startBlockedNodeInThrottle(String category) throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition(
+                "throttle(['" + category + "']) {\n"
+                        + "  semaphore 'wait'\n"
+                        + "  node('nowhere') {}\n"
+                        + "}\n",
+                true));
+        WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", run);
+        return run;
+    }
+
+    private static FlowNode throttleStartNode(WorkflowRun run) {
+        FlowNode throttleStart = new DepthFirstScanner()
+                .findFirstMatch(run.getExecution(), node -> node.getAction(ThrottleCategoriesAction.class) != null);
+        assertNotNull(throttleStart);
+        return throttleStart;
+    }
+
+    private Queue.Item waitForQueuedNodeBlock(WorkflowRun run) throws Exception {
+        j.waitForMessage("Still waiting to schedule task", run);
+        for (Queue.Item item : j.jenkins.getQueue().getItems()) {
+            if (item.task instanceof PlaceholderTask) {
+                return item;
+            }
+        }
+        throw new AssertionError("No node block in the queue");
+    }
 }
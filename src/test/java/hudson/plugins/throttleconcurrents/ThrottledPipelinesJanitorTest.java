@@ -0,0 +1,66 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/** Tests that {@link ThrottledPipelinesJanitor} only removes blocks that are no longer running. */
+public class ThrottledPipelinesJanitorTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void removesBlocksNoLongerRunning() throws Exception {
+        String category = TestUtil.ONE_PER_NODE.getCategoryName();
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE);
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+
+        WorkflowJob p = j.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("throttle(['" + category + "']) { semaphore 'wait' }", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+
+        descriptor.addThrottledPipelineForCategory("missing#1", "3", category, null);
+        descriptor.addThrottledPipelineForCategory(b.getExternalizableId(), "9999", category, null);
+
+        ThrottledPipelinesJanitor.Drift drift = ThrottledPipelinesJanitor.get().clean();
+        assertEquals(1, drift.runs());
+        assertEquals(1, drift.flowNodes());
+        Map<String, List<String>> remaining = descriptor.getThrottledPipelinesForCategory(category);
+        assertEquals(1, remaining.size());
+        assertEquals(1, remaining.get(b.getExternalizableId()).size());
+        assertFalse(descriptor.isThrottledRun("missing#1"));
+        assertTrue(descriptor.isThrottledRun(b.getExternalizableId()));
+
+        assertEquals(0, ThrottledPipelinesJanitor.get().clean().runs());
+
+        SemaphoreStep.success("wait/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+        assertFalse(descriptor.isThrottledRun(b.getExternalizableId()));
+    }
+
+    @Test
+    public void removesBlocksOfDeletedCategories() throws Exception {
+        String category = TestUtil.ONE_PER_NODE.getCategoryName();
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE);
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        descriptor.addThrottledPipelineForCategory("missing#1", "3", category, null);
+        TestUtil.setupCategories(TestUtil.OTHER_ONE_PER_NODE);
+        assertTrue(descriptor.isThrottledRun("missing#1"));
+
+        assertEquals(1, ThrottledPipelinesJanitor.get().clean().runs());
+        assertFalse(descriptor.isThrottledRun("missing#1"));
+        assertTrue(descriptor.getThrottledPipelineCategories().isEmpty());
+    }
+}
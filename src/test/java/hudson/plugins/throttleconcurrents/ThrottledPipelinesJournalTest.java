@@ -0,0 +1,113 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThrottledPipelinesJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void replaysSnapshotAndChanges() throws Exception {
+        File file = new File(tmp.getRoot(), "journal");
+        assertNull(ThrottledPipelinesJournal.replay(file));
+
+        ThrottledPipelines state = new ThrottledPipelines();
+        state.add("job#1", "3", "alpha");
+        ThrottledPipelinesJournal journal = new ThrottledPipelinesJournal(file, state);
+        state.setJournal(journal);
+        change(state);
+        journal.close();
+
+        ThrottledPipelines replayed = ThrottledPipelinesJournal.replay(file);
+        assertNotNull(replayed);
+        assertEquals(state.toPersistedForm(), replayed.toPersistedForm());
+        assertEquals(Collections.singleton("job#3"), replayed.forCategory("alpha").keySet());
+    }
+
+    @Test
+    public void incompleteRecordIsIgnored() throws Exception {
+        File file = new File(tmp.getRoot(), "journal");
+        ThrottledPipelines state = new ThrottledPipelines();
+        ThrottledPipelinesJournal journal = new ThrottledPipelinesJournal(file, state);
+        state.setJournal(journal);
+        change(state);
+        journal.close();
+
+        try (OutputStream os = new FileOutputStream(file, true)) {
+            os.write(new byte[] {'A', 0, 42, 'j'});
+        }
+
+        ThrottledPipelines replayed = ThrottledPipelinesJournal.replay(file);
+        assertNotNull(replayed);
+        assertEquals(state.toPersistedForm(), replayed.toPersistedForm());
+    }
+
+    @Test
+    public void flushCompactsLargeJournals() throws Exception {
+        File file = new File(tmp.getRoot(), "journal");
+        ThrottledPipelines state = new ThrottledPipelines();
+        ThrottledPipelinesJournal journal = new ThrottledPipelinesJournal(file, state);
+        state.setJournal(journal);
+        for (int i = 0; i < ThrottledPipelinesJournal.COMPACT_THRESHOLD; i++) {
+            state.add("job#1", "3", "alpha");
+        }
+        journal.flush();
+        journal.close();
+
+        ThrottledPipelines replayed = ThrottledPipelinesJournal.replay(file);
+        assertNotNull(replayed);
+        assertEquals(state.toPersistedForm(), replayed.toPersistedForm());
+        // header, then a single record of a type byte and three length-prefixed strings
+        assertEquals(4 + 1 + (2 + 5) + (2 + 1) + (2 + 5), file.length());
+    }
+
+    @Test
+    public void concurrentChangesAreJournaledInOrder() throws Exception {
+        File file = new File(tmp.getRoot(), "journal");
+        ThrottledPipelines state = new ThrottledPipelines();
+        ThrottledPipelinesJournal journal = new ThrottledPipelinesJournal(file, state);
+        state.setJournal(journal);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            String runId = "job#" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    state.add(runId, "3", "alpha");
+                    state.add("shared#1", String.valueOf(i), "alpha");
+                    state.removeRun(runId, "alpha");
+                    state.remove("shared#1", String.valueOf(i), "alpha");
+                }
+                state.add(runId, "4", "alpha");
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        journal.close();
+
+        ThrottledPipelines replayed = ThrottledPipelinesJournal.replay(file);
+        assertNotNull(replayed);
+        assertEquals(state.toPersistedForm(), replayed.toPersistedForm());
+    }
+
+    private static void change(ThrottledPipelines state) {
+        state.add("job#2", "5", "alpha");
+        state.add("job#2", "5", "beta");
+        state.add("job#3", "4", "alpha");
+        state.remove("job#2", "5", "beta");
+        state.removeRun("job#2", "alpha");
+        state.removeRun("job#1", "alpha");
+    }
+}
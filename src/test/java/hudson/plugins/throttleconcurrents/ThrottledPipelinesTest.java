@@ -0,0 +1,68 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.util.CopyOnWriteMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.Test;
+
+public class ThrottledPipelinesTest {
+
+    @Test
+    public void indexedByCategoryAndByRun() {
+        ThrottledPipelines pipelines = new ThrottledPipelines();
+        pipelines.add("job#1", "3", "alpha");
+        pipelines.add("job#1", "3", "beta");
+        pipelines.add("job#1", "7", "alpha");
+        pipelines.add("job#2", "3", "alpha");
+
+        Map<String, List<String>> alpha = pipelines.forCategory("alpha");
+        assertEquals(new HashSet<>(Arrays.asList("job#1", "job#2")), alpha.keySet());
+        assertEquals(new HashSet<>(Arrays.asList("3", "7")), new HashSet<>(alpha.get("job#1")));
+        assertEquals(Collections.singletonMap("job#1", Collections.singletonList("3")), pipelines.forCategory("beta"));
+
+        Map<String, List<String>> run = pipelines.forRun("job#1");
+        assertEquals(new HashSet<>(Arrays.asList("alpha", "beta")), new HashSet<>(run.get("3")));
+        assertEquals(Collections.singletonList("alpha"), run.get("7"));
+
+        pipelines.remove("job#1", "3", "alpha");
+        assertEquals(Collections.singletonList("7"), pipelines.forCategory("alpha").get("job#1"));
+        assertEquals(Collections.singletonList("beta"), pipelines.forRun("job#1").get("3"));
+
+        pipelines.removeRun("job#1", "alpha");
+        assertEquals(Collections.singleton("job#2"), pipelines.forCategory("alpha").keySet());
+        assertEquals(Collections.singleton("3"), pipelines.forRun("job#1").keySet());
+
+        pipelines.remove("job#1", "3", "beta");
+        assertTrue(pipelines.forCategory("beta").isEmpty());
+        assertTrue(pipelines.forRun("job#1").isEmpty());
+    }
+
+    @Test
+    public void persistedFormRoundTrips() {
+        ThrottledPipelines pipelines = new ThrottledPipelines();
+        pipelines.add("job#1", "3", "alpha");
+        pipelines.add("job#2", "5", "beta");
+        pipelines.add("job#2", "5", "gamma");
+        pipelines.remove("job#2", "5", "gamma");
+
+        Map<String, Map<String, List<String>>> persisted = pipelines.toPersistedForm();
+        assertEquals(new HashSet<>(Arrays.asList("alpha", "beta")), persisted.keySet());
+        for (Map<String, List<String>> runs : persisted.values()) {
+            assertTrue(runs instanceof CopyOnWriteMap.Tree);
+            for (List<String> flowNodes : runs.values()) {
+                assertTrue(flowNodes instanceof CopyOnWriteArrayList);
+            }
+        }
+
+        ThrottledPipelines restored = ThrottledPipelines.of(persisted);
+        assertEquals(persisted, restored.toPersistedForm());
+        assertEquals(Collections.singletonList("beta"), restored.forRun("job#2").get("5"));
+    }
+}